@@ -0,0 +1,138 @@
+package org.realityforge.keycloak.converger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import javax.annotation.Nonnull;
+
+/**
+ * Generates synthetic client configurations for benchmarks.
+ * Each configuration resembles a typical confidential client with redirect uris, attributes, client scopes and
+ * protocol mappers, contains settings to substitute and UUIDs to replace and is roughly 3KB once rendered.
+ * Some clients refer to other clients via audience mappers. The output is deterministic for a given count.
+ */
+final class ClientGenerator
+{
+  private ClientGenerator()
+  {
+  }
+
+  /**
+   * Return the settings referenced by the generated templates.
+   */
+  @Nonnull
+  static Map<String, String> envs()
+  {
+    final Map<String, String> envs = new HashMap<>();
+    envs.put( "BASE_URL", "https://apps.example.com" );
+    envs.put( "ENVIRONMENT", "production" );
+    envs.put( "ACCESS_TOKEN_LIFESPAN", "300" );
+    return envs;
+  }
+
+  /**
+   * Return the template sources of the specified number of clients.
+   */
+  @Nonnull
+  static List<String> generate( final int count )
+  {
+    final Random random = new Random( count );
+    final List<String> sources = new ArrayList<>( count );
+    for ( int i = 0; i < count; i++ )
+    {
+      sources.add( generate( random, i ) );
+    }
+    return sources;
+  }
+
+  @Nonnull
+  private static String generate( @Nonnull final Random random, final int index )
+  {
+    final String clientId = clientId( index );
+    final StringBuilder sb = new StringBuilder( 4096 );
+    sb.append( "{\n" );
+    sb.append( "  \"id\": \"" ).append( uuid( random ) ).append( "\",\n" );
+    sb.append( "  \"clientId\": \"" ).append( clientId ).append( "\",\n" );
+    sb.append( "  \"name\": \"Application " ).append( index ).append( " ({{ENVIRONMENT}})\",\n" );
+    sb.append( "  \"description\": \"Synthetic client " ).append( index ).append( " used for benchmarking\",\n" );
+    sb.append( "  \"rootUrl\": \"{{BASE_URL}}/" ).append( clientId ).append( "\",\n" );
+    sb.append( "  \"baseUrl\": \"/\",\n" );
+    sb.append( "  \"enabled\": true,\n" );
+    sb.append( "  \"clientAuthenticatorType\": \"client-secret\",\n" );
+    sb.append( "  \"redirectUris\": [\n" );
+    final int redirectCount = 2 + random.nextInt( 4 );
+    for ( int i = 0; i < redirectCount; i++ )
+    {
+      sb.append( "    \"{{BASE_URL}}/" ).append( clientId ).append( "/callback/" ).append( i ).append( "/*\"" );
+      sb.append( i + 1 < redirectCount ? ",\n" : "\n" );
+    }
+    sb.append( "  ],\n" );
+    sb.append( "  \"webOrigins\": [\"{{BASE_URL}}\", \"+\"],\n" );
+    sb.append( "  \"standardFlowEnabled\": true,\n" );
+    sb.append( "  \"directAccessGrantsEnabled\": false,\n" );
+    sb.append( "  \"serviceAccountsEnabled\": " ).append( 0 == index % 3 ).append( ",\n" );
+    sb.append( "  \"publicClient\": false,\n" );
+    sb.append( "  \"protocol\": \"openid-connect\",\n" );
+    sb.append( "  \"attributes\": {\n" );
+    sb.append( "    \"access.token.lifespan\": \"{{ACCESS_TOKEN_LIFESPAN}}\",\n" );
+    sb.append( "    \"pkce.code.challenge.method\": \"S256\",\n" );
+    sb.append( "    \"exclude.session.state.from.auth.response\": \"false\",\n" );
+    sb.append( "    \"tls.client.certificate.bound.access.tokens\": \"false\",\n" );
+    sb.append( "    \"display.on.consent.screen\": \"false\",\n" );
+    sb.append( "    \"backchannel.logout.session.required\": \"true\",\n" );
+    sb.append( "    \"post.logout.redirect.uris\": \"{{BASE_URL}}/" ).append( clientId ).append( "\"\n" );
+    sb.append( "  },\n" );
+    sb.append( "  \"defaultClientScopes\": [\"web-origins\", \"role_list\", \"profile\", \"roles\", \"email\"],\n" );
+    sb.append( "  \"optionalClientScopes\": [\"address\", \"phone\", \"offline_access\"],\n" );
+    sb.append( "  \"protocolMappers\": [\n" );
+    final int mapperCount = 3 + random.nextInt( 4 );
+    for ( int i = 0; i < mapperCount; i++ )
+    {
+      sb.append( "    {\n" );
+      sb.append( "      \"id\": \"" ).append( uuid( random ) ).append( "\",\n" );
+      sb.append( "      \"protocol\": \"openid-connect\",\n" );
+      // Every fifth client refers to an earlier client so that there are dependencies between clients
+      if ( 0 == i && index > 0 && 0 == index % 5 )
+      {
+        sb.append( "      \"name\": \"audience\",\n" );
+        sb.append( "      \"protocolMapper\": \"oidc-audience-mapper\",\n" );
+        sb.append( "      \"config\": {\n" );
+        sb.append( "        \"included.client.audience\": \"" ).append( clientId( random.nextInt( index ) ) ).append( "\",\n" );
+        sb.append( "        \"access.token.claim\": \"true\",\n" );
+        sb.append( "        \"id.token.claim\": \"false\"\n" );
+      }
+      else
+      {
+        sb.append( "      \"name\": \"attribute-" ).append( i ).append( "\",\n" );
+        sb.append( "      \"protocolMapper\": \"oidc-usermodel-attribute-mapper\",\n" );
+        sb.append( "      \"config\": {\n" );
+        sb.append( "        \"user.attribute\": \"attribute" ).append( i ).append( "\",\n" );
+        sb.append( "        \"claim.name\": \"claim" ).append( i ).append( "\",\n" );
+        sb.append( "        \"jsonType.label\": \"String\",\n" );
+        sb.append( "        \"access.token.claim\": \"true\",\n" );
+        sb.append( "        \"id.token.claim\": \"true\",\n" );
+        sb.append( "        \"userinfo.token.claim\": \"true\"\n" );
+      }
+      sb.append( "      }\n" );
+      sb.append( "    }" ).append( i + 1 < mapperCount ? ",\n" : "\n" );
+    }
+    sb.append( "  ]\n" );
+    sb.append( "}\n" );
+    return sb.toString();
+  }
+
+  @Nonnull
+  static String clientId( final int index )
+  {
+    return "app-" + index;
+  }
+
+  @Nonnull
+  private static String uuid( @Nonnull final Random random )
+  {
+    return new UUID( random.nextLong(), random.nextLong() ).toString();
+  }
+}
@@ -0,0 +1,90 @@
+package org.realityforge.keycloak.converger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.util.JsonSerialization;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures diffing desired clients against the clients returned by the server.
+ * The server representations have server assigned ids, defaulted fields and, for every tenth client,
+ * a changed redirect uri so that both the unchanged and changed paths are exercised.
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class DiffBenchmark
+{
+  @Param( { "10", "100", "1000", "10000" } )
+  public int clientCount;
+  private List<ClientRepresentation> _desired;
+  private List<ClientRepresentation> _actual;
+
+  @Setup
+  public void setup()
+  {
+    final Map<String, String> envs = ClientGenerator.envs();
+    _desired = new ArrayList<>();
+    _actual = new ArrayList<>();
+    int index = 0;
+    for ( final String source : ClientGenerator.generate( clientCount ) )
+    {
+      final String configuration = Template.compile( source ).render( envs, UnaryOperator.identity() );
+      final ClientRepresentation desired = ClientConverter.convertLocally( configuration );
+      final ClientRepresentation actual =
+        JsonSerialization.mapper.convertValue( desired, ClientRepresentation.class );
+      actual.setId( UUID.randomUUID().toString() );
+      actual.setSurrogateAuthRequired( false );
+      actual.setBearerOnly( false );
+      actual.setConsentRequired( false );
+      actual.setFrontchannelLogout( false );
+      actual.setNodeReRegistrationTimeout( -1 );
+      actual.setAccess( new HashMap<>() );
+      if ( 0 == index % 10 )
+      {
+        actual.getRedirectUris().set( 0, "https://old.example.com/*" );
+      }
+      _desired.add( desired );
+      _actual.add( actual );
+      index++;
+    }
+  }
+
+  @Benchmark
+  public void diff( final Blackhole blackhole )
+  {
+    for ( int i = 0; i < _desired.size(); i++ )
+    {
+      blackhole.consume( ClientDiff.diff( _desired.get( i ), _actual.get( i ) ) );
+    }
+  }
+
+  @Benchmark
+  public void extractDependencies( final Blackhole blackhole )
+  {
+    for ( final ClientRepresentation client : _desired )
+    {
+      blackhole.consume( ClientDependencies.extract( client ) );
+    }
+  }
+}
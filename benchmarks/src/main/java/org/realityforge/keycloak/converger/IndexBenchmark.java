@@ -0,0 +1,71 @@
+package org.realityforge.keycloak.converger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures building the client index of a realm, looking up every client and fingerprinting the realm.
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class IndexBenchmark
+{
+  @Param( { "10", "100", "1000", "10000" } )
+  public int clientCount;
+  private List<ClientRepresentation> _clients;
+  private ClientIndex _index;
+
+  @Setup
+  public void setup()
+  {
+    final Map<String, String> envs = ClientGenerator.envs();
+    _clients = new ArrayList<>();
+    for ( final String source : ClientGenerator.generate( clientCount ) )
+    {
+      final String configuration = Template.compile( source ).render( envs, UnaryOperator.identity() );
+      _clients.add( ClientConverter.convertLocally( configuration ) );
+    }
+    _index = new ClientIndex( _clients );
+  }
+
+  @Benchmark
+  public ClientIndex build()
+  {
+    return new ClientIndex( _clients );
+  }
+
+  @Benchmark
+  public void findByClientId( final Blackhole blackhole )
+  {
+    for ( int i = 0; i < clientCount; i++ )
+    {
+      blackhole.consume( _index.findByClientId( ClientGenerator.clientId( i ) ) );
+    }
+  }
+
+  @Benchmark
+  public String fingerprint()
+  {
+    return _index.fingerprint();
+  }
+}
@@ -0,0 +1,70 @@
+package org.realityforge.keycloak.converger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures parsing rendered client configurations into client representations and hashing them for the
+ * state manifest.
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class ParseBenchmark
+{
+  @Param( { "10", "100", "1000", "10000" } )
+  public int clientCount;
+  private List<String> _configurations;
+  private List<ClientRepresentation> _clients;
+
+  @Setup
+  public void setup()
+  {
+    final Map<String, String> envs = ClientGenerator.envs();
+    _configurations = new ArrayList<>();
+    _clients = new ArrayList<>();
+    for ( final String source : ClientGenerator.generate( clientCount ) )
+    {
+      final String configuration = Template.compile( source ).render( envs, UnaryOperator.identity() );
+      _configurations.add( configuration );
+      _clients.add( ClientConverter.convertLocally( configuration ) );
+    }
+  }
+
+  @Benchmark
+  public void parse( final Blackhole blackhole )
+  {
+    for ( final String configuration : _configurations )
+    {
+      blackhole.consume( ClientConverter.convertLocally( configuration ) );
+    }
+  }
+
+  @Benchmark
+  public void hashConfig( final Blackhole blackhole )
+  {
+    for ( final ClientRepresentation client : _clients )
+    {
+      blackhole.consume( StateManifest.hashConfig( client ) );
+    }
+  }
+}
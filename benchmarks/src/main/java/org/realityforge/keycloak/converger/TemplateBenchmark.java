@@ -0,0 +1,78 @@
+package org.realityforge.keycloak.converger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures compiling client configuration templates and rendering them for a realm.
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class TemplateBenchmark
+{
+  @Param( { "10", "100", "1000", "10000" } )
+  public int clientCount;
+  private List<String> _sources;
+  private List<Template> _templates;
+  private Map<String, String> _envs;
+
+  @Setup
+  public void setup()
+  {
+    _sources = ClientGenerator.generate( clientCount );
+    _templates = new ArrayList<>();
+    for ( final String source : _sources )
+    {
+      _templates.add( Template.compile( source ) );
+    }
+    _envs = ClientGenerator.envs();
+  }
+
+  @Benchmark
+  public void compile( final Blackhole blackhole )
+  {
+    for ( final String source : _sources )
+    {
+      blackhole.consume( Template.compile( source ) );
+    }
+  }
+
+  @Benchmark
+  public void renderDeterministicUUIDs( final Blackhole blackhole )
+  {
+    for ( final Template template : _templates )
+    {
+      final String clientId = template.renderClientId( _envs );
+      assert null != clientId;
+      blackhole.consume( template.render( _envs, uuid -> DeterministicUUIDs.replacementFor( "realm", clientId, uuid ) ) );
+    }
+  }
+
+  @Benchmark
+  public void renderRandomUUIDs( final Blackhole blackhole )
+  {
+    for ( final Template template : _templates )
+    {
+      blackhole.consume( template.render( _envs, uuid -> UUID.randomUUID().toString() ) );
+    }
+  }
+}
@@ -0,0 +1,822 @@
+package org.realityforge.keycloak.converger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.keycloak.util.JsonSerialization;
+import org.realityforge.getopt4j.CLArgsParser;
+import org.realityforge.getopt4j.CLOption;
+import org.realityforge.getopt4j.CLOptionDescriptor;
+import org.realityforge.getopt4j.CLUtil;
+
+/**
+ * An in-memory fake of the parts of the keycloak admin API used by the converger.
+ *
+ * <p>The fake implements the token endpoint and the client list, create, read, update, delete, secret,
+ * protocol mapper, description converter and partial import endpoints. Realms are created on first use and hold their clients
+ * in memory. Latency, server errors and throttling can be injected into admin requests so that the behaviour
+ * of the converger under load, including its retries and concurrency control, can be exercised without a
+ * keycloak server. The fake may be embedded in another process or run from the command line.</p>
+ *
+ * <p>The number of requests made to each endpoint is available from <code>GET /fake/stats</code>.</p>
+ */
+public final class FakeKeycloak
+{
+  private static final int HELP_OPT = 1;
+  private static final int PORT_OPT = 2;
+  private static final int LATENCY_OPT = 3;
+  private static final int LATENCY_JITTER_OPT = 4;
+  private static final int ERROR_RATE_OPT = 5;
+  private static final int THROTTLE_RATE_OPT = 6;
+  private static final int TOKEN_LIFESPAN_OPT = 7;
+  private static final int THREADS_OPT = 8;
+  private static final int ADMIN_PASSWORD_OPT = 'p';
+  @Nonnull
+  private static final CLOptionDescriptor[] OPTIONS = new CLOptionDescriptor[]{
+    new CLOptionDescriptor( "help",
+                            CLOptionDescriptor.ARGUMENT_DISALLOWED,
+                            HELP_OPT,
+                            "print this message and exit" ),
+    new CLOptionDescriptor( "port",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            PORT_OPT,
+                            "the port to listen on. Defaults to 8080." ),
+    new CLOptionDescriptor( "admin-password",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            ADMIN_PASSWORD_OPT,
+                            "the password required to obtain a token. Defaults to accepting any password." ),
+    new CLOptionDescriptor( "latency",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            LATENCY_OPT,
+                            "the number of milliseconds added to every admin request. Defaults to 0." ),
+    new CLOptionDescriptor( "latency-jitter",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            LATENCY_JITTER_OPT,
+                            "the maximum number of random milliseconds added to the latency. Defaults to 0." ),
+    new CLOptionDescriptor( "error-rate",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            ERROR_RATE_OPT,
+                            "the fraction of admin requests that fail with a 503 response. Defaults to 0." ),
+    new CLOptionDescriptor( "throttle-rate",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            THROTTLE_RATE_OPT,
+                            "the fraction of admin requests that fail with a 429 response. Defaults to 0." ),
+    new CLOptionDescriptor( "token-lifespan",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            TOKEN_LIFESPAN_OPT,
+                            "the number of seconds that issued access tokens are valid. Defaults to 60." ),
+    new CLOptionDescriptor( "threads",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            THREADS_OPT,
+                            "the number of threads handling requests. Defaults to 32." )
+  };
+  @Nonnull
+  private static final String JSON_CONTENT_TYPE = "application/json";
+
+  /**
+   * A response to a request.
+   */
+  private static final class Reply
+  {
+    private final int _status;
+    @Nullable
+    private final Object _body;
+    @Nonnull
+    private final Map<String, String> _headers = new HashMap<>();
+
+    Reply( final int status, @Nullable final Object body )
+    {
+      _status = status;
+      _body = body;
+    }
+
+    @Nonnull
+    Reply header( @Nonnull final String name, @Nonnull final String value )
+    {
+      _headers.put( name, value );
+      return this;
+    }
+  }
+
+  @Nullable
+  private final String _adminPassword;
+  private final long _latencyMillis;
+  private final long _latencyJitterMillis;
+  private final double _errorRate;
+  private final double _throttleRate;
+  private final int _tokenLifespanSeconds;
+  private final int _threads;
+  /**
+   * The clients of each realm keyed by realm name and then by id.
+   */
+  @Nonnull
+  private final Map<String, Map<String, ObjectNode>> _realms = new ConcurrentHashMap<>();
+  /**
+   * The expiry time of each issued access token.
+   */
+  @Nonnull
+  private final Map<String, Long> _accessTokens = new ConcurrentHashMap<>();
+  @Nonnull
+  private final Map<String, Long> _refreshTokens = new ConcurrentHashMap<>();
+  @Nonnull
+  private final Map<String, AtomicLong> _requestCounts = new ConcurrentHashMap<>();
+  @Nullable
+  private HttpServer _server;
+  @Nullable
+  private ExecutorService _executor;
+
+  /**
+   * @param adminPassword        the password required to obtain a token or null to accept any password.
+   * @param latencyMillis        the latency added to every admin request.
+   * @param latencyJitterMillis  the maximum random latency added to the latency.
+   * @param errorRate            the fraction of admin requests that fail with a 503 response.
+   * @param throttleRate         the fraction of admin requests that fail with a 429 response.
+   * @param tokenLifespanSeconds the lifespan of access tokens.
+   * @param threads              the number of threads handling requests.
+   */
+  public FakeKeycloak( @Nullable final String adminPassword,
+                       final long latencyMillis,
+                       final long latencyJitterMillis,
+                       final double errorRate,
+                       final double throttleRate,
+                       final int tokenLifespanSeconds,
+                       final int threads )
+  {
+    _adminPassword = adminPassword;
+    _latencyMillis = latencyMillis;
+    _latencyJitterMillis = latencyJitterMillis;
+    _errorRate = errorRate;
+    _throttleRate = throttleRate;
+    _tokenLifespanSeconds = tokenLifespanSeconds;
+    _threads = threads;
+  }
+
+  public static void main( @Nonnull final String[] args )
+    throws IOException
+  {
+    final CLArgsParser parser = new CLArgsParser( args, OPTIONS );
+    if ( null != parser.getErrorString() )
+    {
+      System.out.println( "Error: " + parser.getErrorString() );
+      System.exit( 1 );
+      return;
+    }
+    int port = 8080;
+    String adminPassword = null;
+    long latency = 0;
+    long latencyJitter = 0;
+    double errorRate = 0;
+    double throttleRate = 0;
+    int tokenLifespan = 60;
+    int threads = 32;
+    try
+    {
+      for ( final CLOption option : parser.getArguments() )
+      {
+        switch ( option.getId() )
+        {
+          case PORT_OPT:
+            port = Integer.parseInt( option.getArgument() );
+            break;
+          case ADMIN_PASSWORD_OPT:
+            adminPassword = option.getArgument();
+            break;
+          case LATENCY_OPT:
+            latency = Long.parseLong( option.getArgument() );
+            break;
+          case LATENCY_JITTER_OPT:
+            latencyJitter = Long.parseLong( option.getArgument() );
+            break;
+          case ERROR_RATE_OPT:
+            errorRate = Double.parseDouble( option.getArgument() );
+            break;
+          case THROTTLE_RATE_OPT:
+            throttleRate = Double.parseDouble( option.getArgument() );
+            break;
+          case TOKEN_LIFESPAN_OPT:
+            tokenLifespan = Integer.parseInt( option.getArgument() );
+            break;
+          case THREADS_OPT:
+            threads = Integer.parseInt( option.getArgument() );
+            break;
+          case HELP_OPT:
+          {
+            System.out.println( "java " + FakeKeycloak.class.getName() + " [options]" +
+                                System.lineSeparator() + "Options: " + System.lineSeparator() +
+                                CLUtil.describeOptions( OPTIONS ) );
+            System.exit( 0 );
+            return;
+          }
+          default:
+          {
+            System.out.println( "Error: Unexpected argument " + option );
+            System.exit( 1 );
+            return;
+          }
+        }
+      }
+    }
+    catch ( final NumberFormatException nfe )
+    {
+      System.out.println( "Error: Invalid number specified. " + nfe.getMessage() );
+      System.exit( 1 );
+      return;
+    }
+    final FakeKeycloak keycloak =
+      new FakeKeycloak( adminPassword, latency, latencyJitter, errorRate, throttleRate, tokenLifespan, threads );
+    keycloak.start( port );
+    System.out.println( "Fake keycloak listening at " + keycloak.getServerUrl() );
+  }
+
+  /**
+   * Start listening on the specified port or on an ephemeral port if the port is 0.
+   */
+  public synchronized void start( final int port )
+    throws IOException
+  {
+    if ( null != _server )
+    {
+      throw new IllegalStateException( "Fake keycloak already started" );
+    }
+    _executor = Executors.newFixedThreadPool( _threads );
+    _server = HttpServer.create( new InetSocketAddress( "localhost", port ), 128 );
+    _server.setExecutor( _executor );
+    _server.createContext( "/", this::handle );
+    _server.start();
+  }
+
+  public synchronized void stop()
+  {
+    if ( null != _server )
+    {
+      _server.stop( 0 );
+      _server = null;
+      assert null != _executor;
+      _executor.shutdownNow();
+      _executor = null;
+    }
+  }
+
+  /**
+   * Return the url that the converger should use as the server url.
+   */
+  @Nonnull
+  public synchronized String getServerUrl()
+  {
+    if ( null == _server )
+    {
+      throw new IllegalStateException( "Fake keycloak not started" );
+    }
+    return "http://localhost:" + _server.getAddress().getPort() + "/auth";
+  }
+
+  /**
+   * Return the clients of the realm keyed by clientId.
+   */
+  @Nonnull
+  public Map<String, JsonNode> getClients( @Nonnull final String realm )
+  {
+    final Map<String, JsonNode> clients = new TreeMap<>();
+    for ( final ObjectNode client : getRealm( realm ).values() )
+    {
+      clients.put( client.path( "clientId" ).asText(), client.deepCopy() );
+    }
+    return clients;
+  }
+
+  /**
+   * Return the number of requests made to each endpoint.
+   */
+  @Nonnull
+  public Map<String, Long> getRequestCounts()
+  {
+    final Map<String, Long> counts = new TreeMap<>();
+    _requestCounts.forEach( ( endpoint, count ) -> counts.put( endpoint, count.get() ) );
+    return counts;
+  }
+
+  private void handle( @Nonnull final HttpExchange exchange )
+    throws IOException
+  {
+    Reply reply;
+    try
+    {
+      final String method = exchange.getRequestMethod();
+      final String path = exchange.getRequestURI().getPath();
+      final List<String> segments =
+        Arrays.asList( ( path.startsWith( "/auth/" ) ? path.substring( 6 ) : path.substring( 1 ) ).split( "/" ) );
+      final byte[] body = readAll( exchange.getRequestBody() );
+      if ( segments.size() >= 3 && "admin".equals( segments.get( 0 ) ) && "realms".equals( segments.get( 1 ) ) )
+      {
+        reply = handleAdmin( exchange, method, segments, body );
+      }
+      else if ( 5 == segments.size() &&
+                "realms".equals( segments.get( 0 ) ) &&
+                "token".equals( segments.get( 4 ) ) &&
+                "POST".equals( method ) )
+      {
+        count( "token" );
+        reply = token( parseForm( new String( body, StandardCharsets.UTF_8 ) ) );
+      }
+      else if ( "/fake/stats".equals( path ) )
+      {
+        reply = new Reply( 200, getRequestCounts() );
+      }
+      else
+      {
+        reply = error( 404, "Not found" );
+      }
+    }
+    catch ( final IOException | RuntimeException e )
+    {
+      reply = error( 500, String.valueOf( e ) );
+    }
+    send( exchange, reply );
+  }
+
+  @Nonnull
+  private Reply handleAdmin( @Nonnull final HttpExchange exchange,
+                             @Nonnull final String method,
+                             @Nonnull final List<String> segments,
+                             @Nonnull final byte[] body )
+    throws IOException
+  {
+    final String realmName = segments.get( 2 );
+    final List<String> resource = segments.subList( 3, segments.size() );
+    final String endpoint =
+      method + " " + ( resource.isEmpty() ? "realm" : resource.get( 0 ) ) +
+      ( resource.size() > 1 ? "/{id}" : "" ) +
+      ( resource.size() > 2 ? "/" + String.join( "/", resource.subList( 2, Math.min( 4, resource.size() ) ) ) : "" ) +
+      ( resource.size() > 4 ? "/{id}" : "" );
+    count( endpoint );
+
+    final String authorization = exchange.getRequestHeaders().getFirst( "Authorization" );
+    final Long expiry =
+      null != authorization && authorization.startsWith( "Bearer " ) ?
+      _accessTokens.get( authorization.substring( 7 ) ) :
+      null;
+    if ( null == expiry || expiry < System.currentTimeMillis() )
+    {
+      return error( 401, "HTTP 401 Unauthorized" );
+    }
+
+    final long latency =
+      _latencyMillis + ( _latencyJitterMillis > 0 ? ThreadLocalRandom.current().nextLong( _latencyJitterMillis + 1 ) : 0 );
+    if ( latency > 0 )
+    {
+      try
+      {
+        Thread.sleep( latency );
+      }
+      catch ( final InterruptedException ie )
+      {
+        Thread.currentThread().interrupt();
+        return error( 503, "Interrupted" );
+      }
+    }
+    final double chance = ThreadLocalRandom.current().nextDouble();
+    if ( chance < _throttleRate )
+    {
+      count( "injected 429" );
+      return error( 429, "Too many requests" ).header( "Retry-After", "1" );
+    }
+    else if ( chance < _throttleRate + _errorRate )
+    {
+      count( "injected 503" );
+      return error( 503, "Service unavailable" );
+    }
+
+    final Map<String, ObjectNode> clients = getRealm( realmName );
+    if ( resource.size() == 1 && "clients".equals( resource.get( 0 ) ) )
+    {
+      if ( "GET".equals( method ) )
+      {
+        final String clientId = parseForm( exchange.getRequestURI().getRawQuery() ).get( "clientId" );
+        final ArrayNode result = JsonSerialization.mapper.createArrayNode();
+        for ( final ObjectNode client : clients.values() )
+        {
+          if ( null == clientId || clientId.equals( client.path( "clientId" ).asText() ) )
+          {
+            result.add( client );
+          }
+        }
+        return new Reply( 200, result );
+      }
+      else if ( "POST".equals( method ) )
+      {
+        final ObjectNode client = (ObjectNode) JsonSerialization.mapper.readTree( body );
+        final String id = createClient( clients, client );
+        return null == id ?
+               error( 409, "Client " + client.path( "clientId" ).asText() + " already exists" ) :
+               new Reply( 201, null )
+                 .header( "Location", getServerUrl() + "/admin/realms/" + realmName + "/clients/" + id );
+      }
+    }
+    else if ( resource.size() >= 2 && "clients".equals( resource.get( 0 ) ) )
+    {
+      final String id = resource.get( 1 );
+      final ObjectNode client = clients.get( id );
+      if ( null == client )
+      {
+        return error( 404, "Could not find client" );
+      }
+      if ( 2 == resource.size() )
+      {
+        switch ( method )
+        {
+          case "GET":
+            return new Reply( 200, client );
+          case "PUT":
+            final ObjectNode update = (ObjectNode) JsonSerialization.mapper.readTree( body );
+            update.remove( "id" );
+            synchronized ( clients )
+            {
+              final ObjectNode updated = client.deepCopy();
+              updated.setAll( update );
+              assignMapperIds( updated );
+              clients.put( id, updated );
+            }
+            return new Reply( 204, null );
+          case "DELETE":
+            clients.remove( id );
+            return new Reply( 204, null );
+          default:
+            break;
+        }
+      }
+      else if ( 3 == resource.size() && "client-secret".equals( resource.get( 2 ) ) && "GET".equals( method ) )
+      {
+        final ObjectNode credential = JsonSerialization.mapper.createObjectNode();
+        credential.put( "type", "secret" );
+        credential.put( "value", client.path( "secret" ).asText() );
+        return new Reply( 200, credential );
+      }
+      else if ( resource.size() >= 4 &&
+                "protocol-mappers".equals( resource.get( 2 ) ) &&
+                "models".equals( resource.get( 3 ) ) )
+      {
+        final String mapperId = resource.size() > 4 ? resource.get( 4 ) : null;
+        return protocolMappers( clients, realmName, id, method, mapperId, body );
+      }
+    }
+    else if ( 1 == resource.size() && "client-description-converter".equals( resource.get( 0 ) ) )
+    {
+      // Only keycloak client json is understood so other formats are rejected as keycloak would for invalid input
+      try
+      {
+        final JsonNode client = JsonSerialization.mapper.readTree( body );
+        if ( client.isObject() && client.has( "clientId" ) )
+        {
+          return new Reply( 200, client );
+        }
+      }
+      catch ( final IOException ignored )
+      {
+        // Fall through to the error
+      }
+      return error( 400, "Unsupported format" );
+    }
+    else if ( 1 == resource.size() && "partialImport".equals( resource.get( 0 ) ) && "POST".equals( method ) )
+    {
+      return partialImport( clients, JsonSerialization.mapper.readTree( body ) );
+    }
+    return error( 404, "Not found" );
+  }
+
+  @Nonnull
+  private Reply protocolMappers( @Nonnull final Map<String, ObjectNode> clients,
+                                 @Nonnull final String realmName,
+                                 @Nonnull final String id,
+                                 @Nonnull final String method,
+                                 @Nullable final String mapperId,
+                                 @Nonnull final byte[] body )
+    throws IOException
+  {
+    synchronized ( clients )
+    {
+      // Clients are replaced rather than modified so that concurrent reads never observe a partial update
+      final ObjectNode client = clients.get( id ).deepCopy();
+      final ArrayNode mappers =
+        client.path( "protocolMappers" ).isArray() ?
+        (ArrayNode) client.get( "protocolMappers" ) :
+        client.putArray( "protocolMappers" );
+      if ( null == mapperId )
+      {
+        if ( "GET".equals( method ) )
+        {
+          return new Reply( 200, mappers );
+        }
+        else if ( "POST".equals( method ) )
+        {
+          final ObjectNode mapper = (ObjectNode) JsonSerialization.mapper.readTree( body );
+          final String name = mapper.path( "name" ).asText();
+          for ( final JsonNode existing : mappers )
+          {
+            if ( name.equals( existing.path( "name" ).asText() ) )
+            {
+              return error( 409, "Protocol mapper exists with same name" );
+            }
+          }
+          final String createdId = UUID.randomUUID().toString();
+          mapper.put( "id", createdId );
+          mappers.add( mapper );
+          clients.put( id, client );
+          return new Reply( 201, null )
+            .header( "Location",
+                     getServerUrl() + "/admin/realms/" + realmName + "/clients/" + id +
+                     "/protocol-mappers/models/" + createdId );
+        }
+      }
+      else
+      {
+        for ( int i = 0; i < mappers.size(); i++ )
+        {
+          if ( mapperId.equals( mappers.get( i ).path( "id" ).asText() ) )
+          {
+            switch ( method )
+            {
+              case "GET":
+                return new Reply( 200, mappers.get( i ) );
+              case "PUT":
+                final ObjectNode mapper = (ObjectNode) JsonSerialization.mapper.readTree( body );
+                mapper.put( "id", mapperId );
+                mappers.set( i, mapper );
+                clients.put( id, client );
+                return new Reply( 204, null );
+              case "DELETE":
+                mappers.remove( i );
+                clients.put( id, client );
+                return new Reply( 204, null );
+              default:
+                return error( 405, "Method not allowed" );
+            }
+          }
+        }
+        return error( 404, "Model not found" );
+      }
+    }
+    return error( 404, "Not found" );
+  }
+
+  /**
+   * Assign an id to each protocol mapper of the client that does not have one, as keycloak does.
+   */
+  private static void assignMapperIds( @Nonnull final ObjectNode client )
+  {
+    for ( final JsonNode mapper : client.path( "protocolMappers" ) )
+    {
+      if ( mapper.isObject() && !mapper.hasNonNull( "id" ) )
+      {
+        ( (ObjectNode) mapper ).put( "id", UUID.randomUUID().toString() );
+      }
+    }
+  }
+
+  @Nonnull
+  private Reply token( @Nonnull final Map<String, String> form )
+  {
+    final String grantType = form.get( "grant_type" );
+    if ( "password".equals( grantType ) )
+    {
+      if ( null != _adminPassword && !_adminPassword.equals( form.get( "password" ) ) )
+      {
+        return new Reply( 401, errorBody( "invalid_grant" ) );
+      }
+    }
+    else if ( "refresh_token".equals( grantType ) )
+    {
+      final Long expiry = _refreshTokens.get( String.valueOf( form.get( "refresh_token" ) ) );
+      if ( null == expiry || expiry < System.currentTimeMillis() )
+      {
+        return new Reply( 400, errorBody( "invalid_grant" ) );
+      }
+    }
+    else
+    {
+      return new Reply( 400, errorBody( "unsupported_grant_type" ) );
+    }
+    final long now = System.currentTimeMillis();
+    final String accessToken = UUID.randomUUID().toString();
+    final String refreshToken = UUID.randomUUID().toString();
+    _accessTokens.put( accessToken, now + TimeUnit.SECONDS.toMillis( _tokenLifespanSeconds ) );
+    _refreshTokens.put( refreshToken, now + TimeUnit.SECONDS.toMillis( _tokenLifespanSeconds * 30L ) );
+    final ObjectNode response = JsonSerialization.mapper.createObjectNode();
+    response.put( "access_token", accessToken );
+    response.put( "expires_in", _tokenLifespanSeconds );
+    response.put( "refresh_token", refreshToken );
+    response.put( "refresh_expires_in", _tokenLifespanSeconds * 30 );
+    response.put( "token_type", "bearer" );
+    return new Reply( 200, response );
+  }
+
+  @Nonnull
+  private Reply partialImport( @Nonnull final Map<String, ObjectNode> clients, @Nonnull final JsonNode representation )
+  {
+    final boolean overwrite = "OVERWRITE".equals( representation.path( "ifResourceExists" ).asText() );
+    final ArrayNode results = JsonSerialization.mapper.createArrayNode();
+    int added = 0;
+    int skipped = 0;
+    int overwritten = 0;
+    for ( final JsonNode element : representation.path( "clients" ) )
+    {
+      final ObjectNode client = (ObjectNode) element;
+      final String clientId = client.path( "clientId" ).asText();
+      final ObjectNode result = results.addObject();
+      result.put( "resourceType", "CLIENT" );
+      result.put( "resourceName", clientId );
+      String id = createClient( clients, client );
+      if ( null != id )
+      {
+        added++;
+        result.put( "action", "ADDED" );
+      }
+      else if ( overwrite )
+      {
+        clients.values().removeIf( c -> clientId.equals( c.path( "clientId" ).asText() ) );
+        id = createClient( clients, client );
+        overwritten++;
+        result.put( "action", "OVERWRITTEN" );
+      }
+      else
+      {
+        skipped++;
+        result.put( "action", "SKIPPED" );
+      }
+      result.put( "id", id );
+    }
+    final ObjectNode response = JsonSerialization.mapper.createObjectNode();
+    response.put( "added", added );
+    response.put( "skipped", skipped );
+    response.put( "overwritten", overwritten );
+    response.set( "results", results );
+    return new Reply( 200, response );
+  }
+
+  /**
+   * Create the client, applying the defaults that keycloak applies.
+   *
+   * @return the id of the created client or null if a client with the same clientId exists.
+   */
+  @Nullable
+  private String createClient( @Nonnull final Map<String, ObjectNode> clients, @Nonnull final ObjectNode client )
+  {
+    final String clientId = client.path( "clientId" ).asText();
+    synchronized ( clients )
+    {
+      for ( final ObjectNode existing : clients.values() )
+      {
+        if ( clientId.equals( existing.path( "clientId" ).asText() ) )
+        {
+          return null;
+        }
+      }
+      final String id = client.hasNonNull( "id" ) ? client.get( "id" ).asText() : UUID.randomUUID().toString();
+      final ObjectNode created = client.deepCopy();
+      created.put( "id", id );
+      assignMapperIds( created );
+      setDefault( created, "enabled", true );
+      setDefault( created, "publicClient", false );
+      setDefault( created, "bearerOnly", false );
+      setDefault( created, "surrogateAuthRequired", false );
+      setDefault( created, "protocol", "openid-connect" );
+      setDefault( created, "clientAuthenticatorType", "client-secret" );
+      if ( !created.path( "publicClient" ).asBoolean() && !created.hasNonNull( "secret" ) )
+      {
+        created.put( "secret", UUID.randomUUID().toString() );
+      }
+      final ObjectNode access = created.putObject( "access" );
+      access.put( "view", true );
+      access.put( "configure", true );
+      access.put( "manage", true );
+      clients.put( id, created );
+      return id;
+    }
+  }
+
+  private static void setDefault( @Nonnull final ObjectNode client, @Nonnull final String field, final boolean value )
+  {
+    if ( !client.hasNonNull( field ) )
+    {
+      client.put( field, value );
+    }
+  }
+
+  private static void setDefault( @Nonnull final ObjectNode client,
+                                  @Nonnull final String field,
+                                  @Nonnull final String value )
+  {
+    if ( !client.hasNonNull( field ) )
+    {
+      client.put( field, value );
+    }
+  }
+
+  @Nonnull
+  private Map<String, ObjectNode> getRealm( @Nonnull final String realmName )
+  {
+    return _realms.computeIfAbsent( realmName, name -> new ConcurrentHashMap<>() );
+  }
+
+  private void count( @Nonnull final String endpoint )
+  {
+    _requestCounts.computeIfAbsent( endpoint, e -> new AtomicLong() ).incrementAndGet();
+  }
+
+  @Nonnull
+  private static Reply error( final int status, @Nonnull final String message )
+  {
+    final ObjectNode body = JsonSerialization.mapper.createObjectNode();
+    body.put( "errorMessage", message );
+    return new Reply( status, body );
+  }
+
+  @Nonnull
+  private static ObjectNode errorBody( @Nonnull final String error )
+  {
+    final ObjectNode body = JsonSerialization.mapper.createObjectNode();
+    body.put( "error", error );
+    return body;
+  }
+
+  private static void send( @Nonnull final HttpExchange exchange, @Nonnull final Reply reply )
+    throws IOException
+  {
+    reply._headers.forEach( ( name, value ) -> exchange.getResponseHeaders().add( name, value ) );
+    final byte[] content = null == reply._body ? new byte[ 0 ] : JsonSerialization.writeValueAsBytes( reply._body );
+    if ( 0 != content.length )
+    {
+      exchange.getResponseHeaders().add( "Content-Type", JSON_CONTENT_TYPE );
+    }
+    if ( 0 == content.length )
+    {
+      exchange.sendResponseHeaders( reply._status, -1 );
+      exchange.close();
+    }
+    else
+    {
+      exchange.sendResponseHeaders( reply._status, content.length );
+      try ( final OutputStream output = exchange.getResponseBody() )
+      {
+        output.write( content );
+      }
+    }
+  }
+
+  @Nonnull
+  private static byte[] readAll( @Nonnull final InputStream input )
+    throws IOException
+  {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[ 8192 ];
+    int count;
+    while ( -1 != ( count = input.read( buffer ) ) )
+    {
+      output.write( buffer, 0, count );
+    }
+    return output.toByteArray();
+  }
+
+  @Nonnull
+  private static Map<String, String> parseForm( @Nullable final String form )
+    throws UnsupportedEncodingException
+  {
+    final Map<String, String> values = new HashMap<>();
+    if ( null != form && !form.isEmpty() )
+    {
+      for ( final String pair : form.split( "&" ) )
+      {
+        final int index = pair.indexOf( '=' );
+        if ( -1 != index )
+        {
+          values.put( URLDecoder.decode( pair.substring( 0, index ), "UTF-8" ),
+                      URLDecoder.decode( pair.substring( index + 1 ), "UTF-8" ) );
+        }
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,226 @@
+package org.realityforge.keycloak.converger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.core.HttpHeaders;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.jboss.resteasy.client.jaxrs.engines.ApacheHttpClient43Engine;
+import org.keycloak.admin.client.JacksonProvider;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.admin.client.KeycloakBuilder;
+import org.keycloak.admin.client.token.TokenManager;
+
+/**
+ * Creates the keycloak admin client over an explicitly configured pooled Apache HttpClient engine.
+ * The pool is sized so that every concurrent operation can hold a connection and every request is bounded by
+ * the connect and read timeouts so that a stalled server can not hang the converger indefinitely.
+ * If a token cache is specified then admin tokens are obtained via a {@link CachedTokenProvider} rather than
+ * by authenticating on every run.
+ */
+final class AdminClientFactory
+{
+  @Nonnull
+  private static final String TOKEN_ENDPOINT_SUFFIX = "/protocol/openid-connect/token";
+  private final int _poolSize;
+  private final int _keepAliveSeconds;
+  private final int _connectTimeoutSeconds;
+  private final int _readTimeoutSeconds;
+  private final boolean _gzip;
+  @Nullable
+  private final Path _tokenCache;
+  @Nonnull
+  private final Metrics _metrics;
+  @Nullable
+  private CachedTokenProvider _tokenProvider;
+  @Nullable
+  private TokenManager _tokenManager;
+
+  /**
+   * @param poolSize              the maximum number of pooled connections to the server.
+   * @param keepAliveSeconds      the maximum time an idle connection is kept in the pool.
+   * @param connectTimeoutSeconds the timeout when establishing a connection or leasing a connection from the pool.
+   * @param readTimeoutSeconds    the maximum time to wait for data from the server.
+   * @param gzip                  true to request gzip compressed responses.
+   * @param tokenCache            the file in which admin tokens are cached between runs or null to disable caching.
+   * @param metrics               the metrics that record every request made by the client.
+   */
+  AdminClientFactory( final int poolSize,
+                      final int keepAliveSeconds,
+                      final int connectTimeoutSeconds,
+                      final int readTimeoutSeconds,
+                      final boolean gzip,
+                      @Nullable final Path tokenCache,
+                      @Nonnull final Metrics metrics )
+  {
+    assert poolSize > 0;
+    _poolSize = poolSize;
+    _keepAliveSeconds = keepAliveSeconds;
+    _connectTimeoutSeconds = connectTimeoutSeconds;
+    _readTimeoutSeconds = readTimeoutSeconds;
+    _gzip = gzip;
+    _tokenCache = tokenCache;
+    _metrics = metrics;
+  }
+
+  @Nonnull
+  Keycloak create( @Nonnull final String serverUrl,
+                   @Nonnull final String realm,
+                   @Nonnull final String username,
+                   @Nonnull final String password,
+                   @Nonnull final String clientId,
+                   @Nonnull final String clientSecret )
+    throws IOException
+  {
+    final ResteasyClient client = createResteasyClient();
+    final KeycloakBuilder builder =
+      KeycloakBuilder
+        .builder()
+        .serverUrl( serverUrl )
+        .realm( realm )
+        .resteasyClient( client );
+    if ( null == _tokenCache )
+    {
+      final Keycloak keycloak =
+        builder
+          .username( username )
+          .password( password )
+          .clientId( clientId )
+          .clientSecret( clientSecret )
+          .build();
+      _tokenManager = keycloak.tokenManager();
+      return keycloak;
+    }
+    else
+    {
+      final CachedTokenProvider tokenProvider =
+        new CachedTokenProvider( _tokenCache, client, serverUrl, realm, clientId, clientSecret, username, password );
+      _tokenProvider = tokenProvider;
+      // The admin client only supports a fixed authorization token so the header it adds is replaced on each
+      // request by a filter that runs after it and supplies the current token from the provider
+      final ClientRequestFilter filter = context -> {
+        // Requests to the token endpoint made by the provider authenticate separately
+        if ( !context.getUri().getPath().endsWith( TOKEN_ENDPOINT_SUFFIX ) )
+        {
+          context.getHeaders().putSingle( HttpHeaders.AUTHORIZATION, "Bearer " + tokenProvider.getAccessToken() );
+        }
+      };
+      client.register( filter, Priorities.USER + 1 );
+      return builder.authorization( tokenProvider.getAccessToken() ).build();
+    }
+  }
+
+  /**
+   * Discard the current access token after the server rejects it so that the next request obtains a new token.
+   * The admin client keeps using a rejected token until it expires so the token held by its token manager is
+   * explicitly invalidated, forcing it to be refreshed or granted again.
+   */
+  void invalidateToken()
+  {
+    if ( null != _tokenProvider )
+    {
+      _tokenProvider.invalidate();
+    }
+    else if ( null != _tokenManager )
+    {
+      _tokenManager.invalidate( _tokenManager.getAccessTokenString() );
+    }
+  }
+
+  @Nonnull
+  private ResteasyClient createResteasyClient()
+  {
+    final ApacheHttpClient43Engine engine = new ApacheHttpClient43Engine( createHttpClient(), true );
+    return new ResteasyClientBuilder()
+      .httpEngine( engine )
+      .register( JacksonProvider.class, 100 )
+      .register( _metrics.newRequestFilter() )
+      .build();
+  }
+
+  @Nonnull
+  private CloseableHttpClient createHttpClient()
+  {
+    final PoolingHttpClientConnectionManager connectionManager =
+      new PoolingHttpClientConnectionManager( RegistryBuilder
+                                                .<ConnectionSocketFactory>create()
+                                                .register( "http", PlainConnectionSocketFactory.getSocketFactory() )
+                                                .register( "https", SSLConnectionSocketFactory.getSystemSocketFactory() )
+                                                .build() );
+    connectionManager.setMaxTotal( _poolSize );
+    // Every request is made to the same server so a single route may use the entire pool
+    connectionManager.setDefaultMaxPerRoute( _poolSize );
+    connectionManager.setValidateAfterInactivity( 1000 );
+
+    final int connectTimeout = (int) TimeUnit.SECONDS.toMillis( _connectTimeoutSeconds );
+    final RequestConfig requestConfig =
+      RequestConfig
+        .custom()
+        .setConnectTimeout( connectTimeout )
+        .setConnectionRequestTimeout( connectTimeout )
+        .setSocketTimeout( (int) TimeUnit.SECONDS.toMillis( _readTimeoutSeconds ) )
+        .build();
+
+    final HttpClientBuilder builder =
+      HttpClientBuilder
+        .create()
+        .useSystemProperties()
+        .setConnectionManager( connectionManager )
+        .setDefaultRequestConfig( requestConfig )
+        .setKeepAliveStrategy( keepAliveStrategy() )
+        .evictIdleConnections( _keepAliveSeconds, TimeUnit.SECONDS );
+    if ( !_gzip )
+    {
+      builder.disableContentCompression();
+    }
+    return builder.build();
+  }
+
+  /**
+   * Return a strategy that keeps connections alive for the duration requested by the server but no
+   * longer than the configured keep-alive.
+   */
+  @Nonnull
+  private ConnectionKeepAliveStrategy keepAliveStrategy()
+  {
+    final long maxKeepAlive = TimeUnit.SECONDS.toMillis( _keepAliveSeconds );
+    return ( response, context ) -> {
+      final HeaderElementIterator iterator =
+        new BasicHeaderElementIterator( response.headerIterator( HTTP.CONN_KEEP_ALIVE ) );
+      while ( iterator.hasNext() )
+      {
+        final HeaderElement element = iterator.nextElement();
+        if ( "timeout".equalsIgnoreCase( element.getName() ) && null != element.getValue() )
+        {
+          try
+          {
+            return Math.min( maxKeepAlive, TimeUnit.SECONDS.toMillis( Long.parseLong( element.getValue() ) ) );
+          }
+          catch ( final NumberFormatException ignored )
+          {
+            // Fall through to the configured keep-alive
+          }
+        }
+      }
+      return maxKeepAlive;
+    };
+  }
+}
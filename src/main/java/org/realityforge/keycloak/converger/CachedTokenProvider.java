@@ -0,0 +1,250 @@
+package org.realityforge.keycloak.converger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
+import org.keycloak.admin.client.resource.BasicAuthFilter;
+import org.keycloak.admin.client.token.TokenService;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Provides admin access tokens, persisting them in a local cache file so that they can be reused across runs.
+ * A cached access token is used while it remains valid, a cached refresh token is used to renew an expired
+ * access token and the password grant is only used when neither token is usable. The cache file is keyed by
+ * server url, realm, client and user and is only readable and writable by the owner.
+ */
+final class CachedTokenProvider
+{
+  /**
+   * Tokens are renewed when they are within this period of expiring.
+   */
+  private static final long MIN_VALIDITY_MILLIS = TimeUnit.SECONDS.toMillis( 30 );
+  @Nonnull
+  private static final String ACCESS_TOKEN_KEY = "accessToken";
+  @Nonnull
+  private static final String ACCESS_TOKEN_EXPIRY_KEY = "accessTokenExpiry";
+  @Nonnull
+  private static final String REFRESH_TOKEN_KEY = "refreshToken";
+  @Nonnull
+  private static final String REFRESH_TOKEN_EXPIRY_KEY = "refreshTokenExpiry";
+  @Nonnull
+  private final Path _file;
+  @Nonnull
+  private final String _key;
+  @Nonnull
+  private final TokenService _tokenService;
+  @Nonnull
+  private final String _realm;
+  @Nonnull
+  private final String _clientId;
+  private final boolean _authenticateClient;
+  @Nonnull
+  private final String _username;
+  @Nonnull
+  private final String _password;
+  @Nullable
+  private String _accessToken;
+  private long _accessTokenExpiry;
+  @Nullable
+  private String _refreshToken;
+  private long _refreshTokenExpiry;
+
+  CachedTokenProvider( @Nonnull final Path file,
+                       @Nonnull final ResteasyClient client,
+                       @Nonnull final String serverUrl,
+                       @Nonnull final String realm,
+                       @Nonnull final String clientId,
+                       @Nullable final String clientSecret,
+                       @Nonnull final String username,
+                       @Nonnull final String password )
+    throws IOException
+  {
+    _file = file;
+    _key = serverUrl + " " + realm + " " + clientId + " " + username;
+    final ResteasyWebTarget target = client.target( serverUrl );
+    if ( null != clientSecret )
+    {
+      target.register( new BasicAuthFilter( clientId, clientSecret ) );
+    }
+    _tokenService = target.proxy( TokenService.class );
+    _realm = realm;
+    _clientId = clientId;
+    _authenticateClient = null != clientSecret;
+    _username = username;
+    _password = password;
+
+    final Map<String, String> entry = load( file ).get( _key );
+    if ( null != entry )
+    {
+      _accessToken = entry.get( ACCESS_TOKEN_KEY );
+      _accessTokenExpiry = parseLong( entry.get( ACCESS_TOKEN_EXPIRY_KEY ) );
+      _refreshToken = entry.get( REFRESH_TOKEN_KEY );
+      _refreshTokenExpiry = parseLong( entry.get( REFRESH_TOKEN_EXPIRY_KEY ) );
+    }
+  }
+
+  /**
+   * Return a valid access token, renewing the token if required.
+   */
+  @Nonnull
+  synchronized String getAccessToken()
+  {
+    final long now = System.currentTimeMillis();
+    if ( null != _accessToken && _accessTokenExpiry - now > MIN_VALIDITY_MILLIS )
+    {
+      return _accessToken;
+    }
+    AccessTokenResponse response = null;
+    if ( null != _refreshToken && ( 0 == _refreshTokenExpiry || _refreshTokenExpiry - now > MIN_VALIDITY_MILLIS ) )
+    {
+      final MultivaluedMap<String, String> form = newForm( "refresh_token" );
+      form.putSingle( "refresh_token", _refreshToken );
+      try
+      {
+        response = _tokenService.refreshToken( _realm, form );
+      }
+      catch ( final WebApplicationException e )
+      {
+        // The refresh token has been revoked or the session has ended so fall back to the password grant
+        response = null;
+      }
+    }
+    if ( null == response )
+    {
+      final MultivaluedMap<String, String> form = newForm( "password" );
+      form.putSingle( "username", _username );
+      form.putSingle( "password", _password );
+      response = _tokenService.grantToken( _realm, form );
+    }
+    update( response, now );
+    return _accessToken;
+  }
+
+  /**
+   * Discard the current access token so that the next request renews the token.
+   * This is invoked when the server rejects the token.
+   */
+  synchronized void invalidate()
+  {
+    _accessToken = null;
+    _accessTokenExpiry = 0;
+  }
+
+  private void update( @Nonnull final AccessTokenResponse response, final long now )
+  {
+    _accessToken = response.getToken();
+    _accessTokenExpiry = now + TimeUnit.SECONDS.toMillis( response.getExpiresIn() );
+    _refreshToken = response.getRefreshToken();
+    _refreshTokenExpiry =
+      0 == response.getRefreshExpiresIn() ? 0 : now + TimeUnit.SECONDS.toMillis( response.getRefreshExpiresIn() );
+    try
+    {
+      save();
+    }
+    catch ( final IOException ignored )
+    {
+      // Failing to cache the token only means that the next run needs to authenticate again
+    }
+  }
+
+  /**
+   * Write the tokens to the cache file, preserving the entries for other servers and users.
+   */
+  private void save()
+    throws IOException
+  {
+    final Map<String, Map<String, String>> entries = load( _file );
+    final Map<String, String> entry = new TreeMap<>();
+    entry.put( ACCESS_TOKEN_KEY, _accessToken );
+    entry.put( ACCESS_TOKEN_EXPIRY_KEY, String.valueOf( _accessTokenExpiry ) );
+    if ( null != _refreshToken )
+    {
+      entry.put( REFRESH_TOKEN_KEY, _refreshToken );
+      entry.put( REFRESH_TOKEN_EXPIRY_KEY, String.valueOf( _refreshTokenExpiry ) );
+    }
+    entries.put( _key, entry );
+
+    final Path dir = _file.toAbsolutePath().getParent();
+    Files.createDirectories( dir );
+    // Files.createTempFile restricts the file to the owner on posix file systems
+    final Path tempFile = Files.createTempFile( dir, _file.getFileName().toString(), ".tmp" );
+    try
+    {
+      if ( FileSystems.getDefault().supportedFileAttributeViews().contains( "posix" ) )
+      {
+        Files.setPosixFilePermissions( tempFile, PosixFilePermissions.fromString( "rw-------" ) );
+      }
+      Files.write( tempFile, JsonSerialization.writeValueAsBytes( new TreeMap<>( entries ) ) );
+      Files.move( tempFile, _file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+    finally
+    {
+      Files.deleteIfExists( tempFile );
+    }
+  }
+
+  @Nonnull
+  private static Map<String, Map<String, String>> load( @Nonnull final Path file )
+    throws IOException
+  {
+    if ( Files.exists( file ) )
+    {
+      try
+      {
+        return JsonSerialization.mapper.readValue( file.toFile(),
+                                                   new TypeReference<HashMap<String, Map<String, String>>>()
+                                                   {
+                                                   } );
+      }
+      catch ( final IOException ioe )
+      {
+        // A corrupt cache is discarded and replaced when the next token is obtained
+        return new HashMap<>();
+      }
+    }
+    else
+    {
+      return new HashMap<>();
+    }
+  }
+
+  @Nonnull
+  private MultivaluedMap<String, String> newForm( @Nonnull final String grantType )
+  {
+    final MultivaluedMap<String, String> form = new MultivaluedHashMap<>();
+    form.putSingle( "grant_type", grantType );
+    if ( !_authenticateClient )
+    {
+      form.putSingle( "client_id", _clientId );
+    }
+    return form;
+  }
+
+  private static long parseLong( @Nullable final String value )
+  {
+    try
+    {
+      return null == value ? 0 : Long.parseLong( value );
+    }
+    catch ( final NumberFormatException nfe )
+    {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,324 @@
+package org.realityforge.keycloak.converger;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * The set of changes required to converge one or more realms.
+ * A plan is computed by reading and diffing the realms and can be serialized so that it can be reviewed
+ * and later applied without repeating the read and diff. Each realm records a fingerprint of the clients
+ * present when the plan was computed so that a plan is not applied to a realm that has since changed.
+ */
+final class ChangePlan
+{
+  static final int VERSION = 1;
+
+  /**
+   * The type of a planned operation.
+   */
+  enum Type
+  {
+    CREATE( "upload:", "Create" ),
+    UPDATE( "upload:", "Update" ),
+    DELETE( "delete:", "Delete" ),
+    SECRET( "secret:", "Collect secret" );
+
+    @Nonnull
+    private final String _keyPrefix;
+    @Nonnull
+    private final String _description;
+
+    Type( @Nonnull final String keyPrefix, @Nonnull final String description )
+    {
+      _keyPrefix = keyPrefix;
+      _description = description;
+    }
+
+    /**
+     * Return the key identifying the operation of this type on the specified client.
+     * Creates and updates share a key as a client is only ever uploaded once.
+     */
+    @Nonnull
+    String keyFor( @Nonnull final String clientId )
+    {
+      return _keyPrefix + clientId;
+    }
+
+    @Nonnull
+    String getDescription()
+    {
+      return _description;
+    }
+  }
+
+  /**
+   * A single planned operation on a client.
+   */
+  static final class Operation
+  {
+    private Type _type;
+    private String _clientId;
+    @Nullable
+    private String _id;
+    @Nullable
+    private ClientRepresentation _client;
+    @Nonnull
+    private List<String> _changes = new ArrayList<>();
+    @Nonnull
+    private List<String> _dependencies = new ArrayList<>();
+
+    Operation()
+    {
+      // Used by jackson
+    }
+
+    Operation( @Nonnull final Type type,
+               @Nonnull final String clientId,
+               @Nullable final String id,
+               @Nullable final ClientRepresentation client,
+               @Nonnull final List<String> changes,
+               @Nonnull final List<String> dependencies )
+    {
+      _type = type;
+      _clientId = clientId;
+      _id = id;
+      _client = client;
+      _changes = changes;
+      _dependencies = dependencies;
+    }
+
+    public Type getType()
+    {
+      return _type;
+    }
+
+    public void setType( final Type type )
+    {
+      _type = type;
+    }
+
+    public String getClientId()
+    {
+      return _clientId;
+    }
+
+    public void setClientId( final String clientId )
+    {
+      _clientId = clientId;
+    }
+
+    /**
+     * Return the id of the existing client on the server or null if the client is yet to be created.
+     */
+    @Nullable
+    public String getId()
+    {
+      return _id;
+    }
+
+    public void setId( @Nullable final String id )
+    {
+      _id = id;
+    }
+
+    /**
+     * Return the client representation to upload for creates and updates.
+     */
+    @Nullable
+    public ClientRepresentation getClient()
+    {
+      return _client;
+    }
+
+    public void setClient( @Nullable final ClientRepresentation client )
+    {
+      _client = client;
+    }
+
+    /**
+     * Return a description of each field changed by an update.
+     */
+    @Nonnull
+    public List<String> getChanges()
+    {
+      return _changes;
+    }
+
+    public void setChanges( @Nonnull final List<String> changes )
+    {
+      _changes = changes;
+    }
+
+    /**
+     * Return the keys of the operations that must complete before this operation.
+     */
+    @Nonnull
+    public List<String> getDependencies()
+    {
+      return _dependencies;
+    }
+
+    public void setDependencies( @Nonnull final List<String> dependencies )
+    {
+      _dependencies = dependencies;
+    }
+
+    @JsonIgnore
+    @Nonnull
+    String getKey()
+    {
+      return _type.keyFor( _clientId );
+    }
+
+    @Override
+    public String toString()
+    {
+      return _type.getDescription() + " client '" + _clientId + "'";
+    }
+  }
+
+  /**
+   * The planned operations for a single realm.
+   */
+  static final class RealmPlan
+  {
+    private String _realm;
+    private String _fingerprint;
+    @Nonnull
+    private Map<String, String> _configHashes = new HashMap<>();
+    @Nonnull
+    private List<Operation> _operations = new ArrayList<>();
+
+    RealmPlan()
+    {
+      // Used by jackson
+    }
+
+    RealmPlan( @Nonnull final String realm,
+               @Nonnull final String fingerprint,
+               @Nonnull final Map<String, String> configHashes,
+               @Nonnull final List<Operation> operations )
+    {
+      _realm = realm;
+      _fingerprint = fingerprint;
+      _configHashes = configHashes;
+      _operations = operations;
+    }
+
+    public String getRealm()
+    {
+      return _realm;
+    }
+
+    public void setRealm( final String realm )
+    {
+      _realm = realm;
+    }
+
+    /**
+     * Return the fingerprint of the clients in the realm when the plan was computed.
+     */
+    public String getFingerprint()
+    {
+      return _fingerprint;
+    }
+
+    public void setFingerprint( final String fingerprint )
+    {
+      _fingerprint = fingerprint;
+    }
+
+    /**
+     * Return the hash of the desired configuration of every managed client keyed by clientId.
+     */
+    @Nonnull
+    public Map<String, String> getConfigHashes()
+    {
+      return _configHashes;
+    }
+
+    public void setConfigHashes( @Nonnull final Map<String, String> configHashes )
+    {
+      _configHashes = configHashes;
+    }
+
+    @Nonnull
+    public List<Operation> getOperations()
+    {
+      return _operations;
+    }
+
+    public void setOperations( @Nonnull final List<Operation> operations )
+    {
+      _operations = operations;
+    }
+  }
+
+  private int _version = VERSION;
+  @Nonnull
+  private List<RealmPlan> _realms = new ArrayList<>();
+
+  public int getVersion()
+  {
+    return _version;
+  }
+
+  public void setVersion( final int version )
+  {
+    _version = version;
+  }
+
+  @Nonnull
+  public List<RealmPlan> getRealms()
+  {
+    return _realms;
+  }
+
+  public void setRealms( @Nonnull final List<RealmPlan> realms )
+  {
+    _realms = realms;
+  }
+
+  @Nonnull
+  static ChangePlan load( @Nonnull final Path file )
+    throws IOException
+  {
+    final ChangePlan plan = JsonSerialization.mapper.readValue( file.toFile(), ChangePlan.class );
+    if ( VERSION != plan.getVersion() )
+    {
+      throw new IllegalStateException( "Plan file " + file + " has unsupported version " + plan.getVersion() );
+    }
+    return plan;
+  }
+
+  /**
+   * Atomically write the plan to the specified file.
+   */
+  void save( @Nonnull final Path file )
+    throws IOException
+  {
+    final Path dir = file.toAbsolutePath().getParent();
+    Files.createDirectories( dir );
+    final Path tempFile = Files.createTempFile( dir, file.getFileName().toString(), ".tmp" );
+    try
+    {
+      JsonSerialization.mapper.writeValue( tempFile.toFile(), this );
+      Files.move( tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+    finally
+    {
+      Files.deleteIfExists( tempFile );
+    }
+  }
+}
@@ -0,0 +1,249 @@
+package org.realityforge.keycloak.converger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * A single file containing the client configuration templates of a directory tree.
+ *
+ * <p>The bundle is newline delimited json. The first line is an index that records the path of each template
+ * relative to the directory, the clientId of the template when it does not depend upon any settings and the
+ * offset and length of the template relative to the end of the index. Each subsequent line is a json string
+ * containing the source of a template.</p>
+ *
+ * <p>The bundle is memory mapped and only the index is parsed when the bundle is opened. The source of a
+ * template is only decoded when it is read, so templates that are not required are never read.</p>
+ */
+final class ClientBundle
+{
+  @Nonnull
+  private static final String FORMAT = "keycloak-converger-bundle";
+  static final int VERSION = 1;
+
+  /**
+   * A template in the bundle.
+   */
+  static final class Entry
+  {
+    @Nonnull
+    private final String _path;
+    @Nullable
+    private final String _clientId;
+    private final int _offset;
+    private final int _length;
+
+    Entry( @Nonnull final String path, @Nullable final String clientId, final int offset, final int length )
+    {
+      _path = path;
+      _clientId = clientId;
+      _offset = offset;
+      _length = length;
+    }
+
+    /**
+     * Return the path of the template relative to the directory that was bundled using '/' as the separator.
+     */
+    @Nonnull
+    String getPath()
+    {
+      return _path;
+    }
+
+    /**
+     * Return the clientId of the template or null if the clientId depends upon settings.
+     */
+    @Nullable
+    String getClientId()
+    {
+      return _clientId;
+    }
+  }
+
+  @Nonnull
+  private final Path _file;
+  @Nonnull
+  private final ByteBuffer _data;
+  /**
+   * The entries keyed by the path that represents the template, in the order they were bundled.
+   */
+  @Nonnull
+  private final Map<Path, Entry> _entries;
+
+  private ClientBundle( @Nonnull final Path file, @Nonnull final ByteBuffer data, @Nonnull final List<Entry> entries )
+  {
+    _file = file;
+    _data = data;
+    final Map<Path, Entry> byPath = new LinkedHashMap<>();
+    for ( final Entry entry : entries )
+    {
+      byPath.put( toPath( entry ), entry );
+    }
+    _entries = Collections.unmodifiableMap( byPath );
+  }
+
+  /**
+   * Map the bundle and read the index.
+   */
+  @Nonnull
+  static ClientBundle open( @Nonnull final Path file )
+    throws IOException
+  {
+    final MappedByteBuffer buffer;
+    try ( final FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) )
+    {
+      if ( channel.size() > Integer.MAX_VALUE )
+      {
+        throw new IllegalStateException( "Bundle " + file + " is larger than 2GB" );
+      }
+      // The mapping remains valid after the channel is closed
+      buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+    }
+    int end = 0;
+    while ( end < buffer.limit() && '\n' != buffer.get( end ) )
+    {
+      end++;
+    }
+    final byte[] header = new byte[ end ];
+    buffer.get( header );
+    final JsonNode index = JsonSerialization.mapper.readTree( header );
+    if ( !FORMAT.equals( index.path( "format" ).asText() ) || VERSION != index.path( "version" ).asInt() )
+    {
+      throw new IllegalStateException( "File " + file + " is not a version " + VERSION + " client bundle" );
+    }
+    final List<Entry> entries = new ArrayList<>();
+    for ( final JsonNode client : index.path( "clients" ) )
+    {
+      final JsonNode clientId = client.path( "clientId" );
+      entries.add( new Entry( client.path( "path" ).asText(),
+                              clientId.isTextual() ? clientId.asText() : null,
+                              client.path( "offset" ).asInt(),
+                              client.path( "length" ).asInt() ) );
+    }
+    buffer.position( Math.min( end + 1, buffer.limit() ) );
+    return new ClientBundle( file, buffer.slice(), entries );
+  }
+
+  /**
+   * Atomically write a bundle containing the specified templates.
+   *
+   * @param dir   the directory that the templates are bundled from.
+   * @param files the template files within the directory.
+   * @throws IllegalStateException if a template is malformed.
+   */
+  static void write( @Nonnull final Path file, @Nonnull final Path dir, @Nonnull final List<Path> files )
+    throws IOException
+  {
+    final ArrayNode clients = JsonSerialization.mapper.createArrayNode();
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    for ( final Path source : files )
+    {
+      final String template = new String( Files.readAllBytes( source ), StandardCharsets.UTF_8 );
+      final String clientId;
+      try
+      {
+        clientId = Template.compile( template ).getLiteralClientId();
+      }
+      catch ( final IllegalStateException ise )
+      {
+        throw new IllegalStateException( "Error compiling client configuration from file " + source +
+                                         ". Error: " + ise.getMessage(), ise );
+      }
+      final byte[] encoded = JsonSerialization.mapper.writeValueAsBytes( template );
+      final ObjectNode client = clients.addObject();
+      final List<String> names = new ArrayList<>();
+      dir.relativize( source ).forEach( name -> names.add( name.toString() ) );
+      client.put( "path", String.join( "/", names ) );
+      if ( null != clientId )
+      {
+        client.put( "clientId", clientId );
+      }
+      client.put( "offset", data.size() );
+      client.put( "length", encoded.length );
+      data.write( encoded );
+      data.write( '\n' );
+    }
+    final ObjectNode index = JsonSerialization.mapper.createObjectNode();
+    index.put( "format", FORMAT );
+    index.put( "version", VERSION );
+    index.set( "clients", clients );
+
+    final Path parent = file.toAbsolutePath().getParent();
+    Files.createDirectories( parent );
+    final Path tempFile = Files.createTempFile( parent, file.getFileName().toString(), ".tmp" );
+    try
+    {
+      try ( final OutputStream output = Files.newOutputStream( tempFile ) )
+      {
+        output.write( JsonSerialization.mapper.writeValueAsBytes( index ) );
+        output.write( '\n' );
+        data.writeTo( output );
+      }
+      Files.move( tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+    finally
+    {
+      Files.deleteIfExists( tempFile );
+    }
+  }
+
+  @Nonnull
+  Path getFile()
+  {
+    return _file;
+  }
+
+  /**
+   * Return the entries keyed by the path that represents the template in error messages and when loading.
+   * The path is the relative path of the template resolved against the bundle file.
+   */
+  @Nonnull
+  Map<Path, Entry> getEntries()
+  {
+    return _entries;
+  }
+
+  /**
+   * Decode the source of the template.
+   */
+  @Nonnull
+  String readSource( @Nonnull final Entry entry )
+    throws IOException
+  {
+    if ( entry._offset < 0 || entry._length < 0 || entry._offset > _data.limit() - entry._length )
+    {
+      throw new IllegalStateException( "Template " + entry._path + " lies outside bundle " + _file );
+    }
+    // The buffer is shared between threads so each read uses an independent view of it
+    final ByteBuffer view = _data.duplicate();
+    view.position( entry._offset );
+    final byte[] bytes = new byte[ entry._length ];
+    view.get( bytes );
+    return JsonSerialization.mapper.readValue( bytes, String.class );
+  }
+
+  @Nonnull
+  Path toPath( @Nonnull final Entry entry )
+  {
+    return _file.resolve( entry._path );
+  }
+}
@@ -0,0 +1,80 @@
+package org.realityforge.keycloak.converger;
+
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParseException;
+import java.io.IOException;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Convert client configurations into client representations.
+ * Keycloak client json is converted locally and malformed json is reported without contacting the server. Only
+ * other formats (i.e. SAML entity descriptors or OpenID Connect client registration documents) are passed to the
+ * server-side client description converter.
+ */
+final class ClientConverter
+{
+  private ClientConverter()
+  {
+  }
+
+  @Nonnull
+  static ClientRepresentation convert( @Nonnull final String configuration,
+                                       @Nonnull final Function<String, ClientRepresentation> fallback )
+  {
+    final ClientRepresentation client = convertLocally( configuration );
+    return null != client ? client : fallback.apply( configuration );
+  }
+
+  /**
+   * Convert the configuration if it is keycloak client json, otherwise return null.
+   * The configuration is parsed directly into the client representation without an intermediate tree.
+   *
+   * @throws IllegalStateException if the configuration is a json object that is not well formed.
+   */
+  @Nullable
+  static ClientRepresentation convertLocally( @Nonnull final String configuration )
+  {
+    if ( !isJsonObject( configuration ) )
+    {
+      return null;
+    }
+    try
+    {
+      final ClientRepresentation client =
+        JsonSerialization.mapper.readValue( configuration, ClientRepresentation.class );
+      return null != client.getClientId() ? client : null;
+    }
+    catch ( final JsonParseException jpe )
+    {
+      // Malformed json would be rejected by the server as well so report it without a round trip
+      final JsonLocation location = jpe.getLocation();
+      throw new IllegalStateException( "Malformed json at line " + location.getLineNr() +
+                                       " column " + location.getColumnNr() + ": " + jpe.getOriginalMessage(),
+                                       jpe );
+    }
+    catch ( final IOException ioe )
+    {
+      // Well formed json that is not a keycloak client representation (i.e. an OpenID Connect client
+      // registration document) so let the server attempt to convert it
+      return null;
+    }
+  }
+
+  private static boolean isJsonObject( @Nonnull final String configuration )
+  {
+    final int length = configuration.length();
+    for ( int i = 0; i < length; i++ )
+    {
+      final char ch = configuration.charAt( i );
+      if ( !Character.isWhitespace( ch ) )
+      {
+        return '{' == ch;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,104 @@
+package org.realityforge.keycloak.converger;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.annotation.Nonnull;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.ProtocolMapperRepresentation;
+
+/**
+ * Determine the other clients that a client configuration refers to.
+ * A client that refers to another client (i.e. through an audience mapper or a client role mapper that
+ * exposes the roles granted to a service account) must be converged after the client it refers to.
+ */
+final class ClientDependencies
+{
+  /**
+   * Protocol mapper configuration keys whose values are the clientId of another client.
+   */
+  @Nonnull
+  private static final List<String> CLIENT_REFERENCE_KEYS =
+    Arrays.asList( "included.client.audience", "usermodel.clientRoleMapping.clientId" );
+
+  private ClientDependencies()
+  {
+  }
+
+  /**
+   * Return the clientIds referenced by the specified client excluding the client itself.
+   */
+  @Nonnull
+  static Set<String> extract( @Nonnull final ClientRepresentation client )
+  {
+    final Set<String> dependencies = new TreeSet<>();
+    final List<ProtocolMapperRepresentation> mappers = client.getProtocolMappers();
+    if ( null != mappers )
+    {
+      for ( final ProtocolMapperRepresentation mapper : mappers )
+      {
+        final Map<String, String> config = mapper.getConfig();
+        if ( null != config )
+        {
+          for ( final String key : CLIENT_REFERENCE_KEYS )
+          {
+            final String value = config.get( key );
+            if ( null != value && !value.isEmpty() )
+            {
+              dependencies.add( value );
+            }
+          }
+        }
+      }
+    }
+    dependencies.remove( client.getClientId() );
+    return dependencies;
+  }
+
+  /**
+   * Remove the dependencies that would introduce a cycle into the dependency graph.
+   * Clients may legitimately refer to each other (i.e. two services that include each other in the
+   * audience of their tokens) in which case there is no ordering that satisfies both references and
+   * the reference encountered last in a depth-first traversal is dropped.
+   */
+  @Nonnull
+  static Map<String, Set<String>> removeCycles( @Nonnull final Map<String, Set<String>> graph )
+  {
+    final Map<String, Set<String>> result = new TreeMap<>();
+    final Set<String> visited = new HashSet<>();
+    final Set<String> inProgress = new HashSet<>();
+    for ( final String clientID : new TreeSet<>( graph.keySet() ) )
+    {
+      visit( clientID, graph, result, visited, inProgress );
+    }
+    return result;
+  }
+
+  private static void visit( @Nonnull final String clientID,
+                             @Nonnull final Map<String, Set<String>> graph,
+                             @Nonnull final Map<String, Set<String>> result,
+                             @Nonnull final Set<String> visited,
+                             @Nonnull final Set<String> inProgress )
+  {
+    if ( visited.add( clientID ) )
+    {
+      inProgress.add( clientID );
+      final Set<String> dependencies = new TreeSet<>();
+      for ( final String dependency : graph.getOrDefault( clientID, Collections.emptySet() ) )
+      {
+        if ( !inProgress.contains( dependency ) )
+        {
+          visit( dependency, graph, result, visited, inProgress );
+          dependencies.add( dependency );
+        }
+      }
+      inProgress.remove( clientID );
+      result.put( clientID, dependencies );
+    }
+  }
+}
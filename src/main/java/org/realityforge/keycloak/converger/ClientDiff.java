@@ -0,0 +1,285 @@
+package org.realityforge.keycloak.converger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nonnull;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.ProtocolMapperRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Semantic comparison of a desired client against the client representation returned by the server.
+ *
+ * <p>Fields that are absent from the desired representation are assumed to be defaulted by the server and
+ * are ignored. Server assigned identifiers are ignored at every level. Arrays of scalars are compared as
+ * sets and arrays of named objects (i.e. protocol mappers) are matched by name. An empty array is equivalent
+ * to a field that the server omits.</p>
+ */
+final class ClientDiff
+{
+  /**
+   * Fields assigned by the server that never participate in the comparison.
+   */
+  @Nonnull
+  private static final Set<String> IGNORED_FIELDS = new HashSet<>( Arrays.asList( "id", "containerId" ) );
+  /**
+   * Top-level fields that are not returned when listing clients and thus can never be compared.
+   * If the desired client specifies any of these then the client is always considered changed.
+   */
+  @Nonnull
+  private static final Set<String> UNCOMPARABLE_FIELDS = Collections.singleton( "authorizationSettings" );
+  @Nonnull
+  private static final String NAME_FIELD = "name";
+  @Nonnull
+  private static final String PROTOCOL_MAPPERS_FIELD = "protocolMappers";
+
+  private ClientDiff()
+  {
+  }
+
+  /**
+   * A single difference between the desired and the actual client.
+   */
+  static final class Change
+  {
+    @Nonnull
+    private final String _path;
+    @Nonnull
+    private final String _actual;
+    @Nonnull
+    private final String _desired;
+
+    Change( @Nonnull final String path, @Nonnull final String actual, @Nonnull final String desired )
+    {
+      _path = path;
+      _actual = actual;
+      _desired = desired;
+    }
+
+    @Nonnull
+    String getPath()
+    {
+      return _path;
+    }
+
+    @Nonnull
+    String getActual()
+    {
+      return _actual;
+    }
+
+    @Nonnull
+    String getDesired()
+    {
+      return _desired;
+    }
+
+    @Override
+    public String toString()
+    {
+      return _path + ": " + _actual + " -> " + _desired;
+    }
+  }
+
+  /**
+   * Return the list of changes required to converge the actual client to the desired client.
+   * An empty list indicates that the clients are equivalent and no update is required.
+   */
+  @Nonnull
+  static List<Change> diff( @Nonnull final ClientRepresentation desired, @Nonnull final ClientRepresentation actual )
+  {
+    final JsonNode desiredNode = JsonSerialization.mapper.valueToTree( desired );
+    final JsonNode actualNode = JsonSerialization.mapper.valueToTree( actual );
+    final List<Change> changes = new ArrayList<>();
+    for ( final String field : UNCOMPARABLE_FIELDS )
+    {
+      final JsonNode value = desiredNode.get( field );
+      if ( null != value && !value.isNull() )
+      {
+        changes.add( new Change( field, "<not returned by server>", value.toString() ) );
+      }
+    }
+    compareObjects( "", desiredNode, actualNode, changes );
+    return changes;
+  }
+
+  /**
+   * Return the list of changes required to converge the actual protocol mapper to the desired protocol mapper.
+   */
+  @Nonnull
+  static List<Change> diff( @Nonnull final ProtocolMapperRepresentation desired,
+                            @Nonnull final ProtocolMapperRepresentation actual )
+  {
+    final List<Change> changes = new ArrayList<>();
+    compareObjects( "",
+                    JsonSerialization.mapper.valueToTree( desired ),
+                    JsonSerialization.mapper.valueToTree( actual ),
+                    changes );
+    return changes;
+  }
+
+  /**
+   * Return true if the change is confined to the protocol mappers of the client.
+   */
+  static boolean isProtocolMapperChange( @Nonnull final Change change )
+  {
+    final String path = change.getPath();
+    return PROTOCOL_MAPPERS_FIELD.equals( path ) || path.startsWith( PROTOCOL_MAPPERS_FIELD + "[" );
+  }
+
+  private static void compare( @Nonnull final String path,
+                               @Nonnull final JsonNode desired,
+                               @Nonnull final JsonNode actual,
+                               @Nonnull final List<Change> changes )
+  {
+    if ( desired.isNull() )
+    {
+      // A null value is equivalent to not specifying the field and thus the server default applies
+    }
+    else if ( desired.isObject() )
+    {
+      if ( actual.isObject() )
+      {
+        compareObjects( path, desired, actual, changes );
+      }
+      else
+      {
+        changes.add( new Change( path, describe( actual ), desired.toString() ) );
+      }
+    }
+    else if ( desired.isArray() )
+    {
+      if ( actual.isArray() )
+      {
+        compareArrays( path, desired, actual, changes );
+      }
+      else if ( 0 == desired.size() && ( actual.isMissingNode() || actual.isNull() ) )
+      {
+        // The server omits empty collections (i.e. protocolMappers and defaultRoles) from the representation
+      }
+      else
+      {
+        changes.add( new Change( path, describe( actual ), desired.toString() ) );
+      }
+    }
+    else if ( !valuesEqual( desired, actual ) )
+    {
+      changes.add( new Change( path, describe( actual ), desired.toString() ) );
+    }
+  }
+
+  private static void compareObjects( @Nonnull final String path,
+                                      @Nonnull final JsonNode desired,
+                                      @Nonnull final JsonNode actual,
+                                      @Nonnull final List<Change> changes )
+  {
+    final Iterator<Map.Entry<String, JsonNode>> fields = desired.fields();
+    while ( fields.hasNext() )
+    {
+      final Map.Entry<String, JsonNode> field = fields.next();
+      final String name = field.getKey();
+      if ( !IGNORED_FIELDS.contains( name ) && !( path.isEmpty() && UNCOMPARABLE_FIELDS.contains( name ) ) )
+      {
+        final JsonNode actualValue = actual.get( name );
+        compare( path.isEmpty() ? name : path + "." + name,
+                 field.getValue(),
+                 null == actualValue ? MissingNode.getInstance() : actualValue,
+                 changes );
+      }
+    }
+  }
+
+  private static void compareArrays( @Nonnull final String path,
+                                     @Nonnull final JsonNode desired,
+                                     @Nonnull final JsonNode actual,
+                                     @Nonnull final List<Change> changes )
+  {
+    if ( isNamedObjectArray( desired ) && isNamedObjectArray( actual ) )
+    {
+      final Map<String, JsonNode> actualByName = indexByName( actual );
+      final Map<String, JsonNode> desiredByName = indexByName( desired );
+      for ( final Map.Entry<String, JsonNode> entry : desiredByName.entrySet() )
+      {
+        final String elementPath = path + "[" + entry.getKey() + "]";
+        final JsonNode actualElement = actualByName.get( entry.getKey() );
+        if ( null == actualElement )
+        {
+          changes.add( new Change( elementPath, "<absent>", "<added>" ) );
+        }
+        else
+        {
+          compareObjects( elementPath, entry.getValue(), actualElement, changes );
+        }
+      }
+      for ( final String name : actualByName.keySet() )
+      {
+        if ( !desiredByName.containsKey( name ) )
+        {
+          changes.add( new Change( path + "[" + name + "]", "<present>", "<removed>" ) );
+        }
+      }
+    }
+    else if ( !toSet( desired ).equals( toSet( actual ) ) )
+    {
+      changes.add( new Change( path, actual.toString(), desired.toString() ) );
+    }
+  }
+
+  private static boolean isNamedObjectArray( @Nonnull final JsonNode array )
+  {
+    for ( final JsonNode element : array )
+    {
+      if ( !element.isObject() || !element.path( NAME_FIELD ).isTextual() )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Nonnull
+  private static Map<String, JsonNode> indexByName( @Nonnull final JsonNode array )
+  {
+    final Map<String, JsonNode> index = new LinkedHashMap<>();
+    for ( final JsonNode element : array )
+    {
+      index.put( element.get( NAME_FIELD ).asText(), element );
+    }
+    return index;
+  }
+
+  @Nonnull
+  private static Set<JsonNode> toSet( @Nonnull final JsonNode array )
+  {
+    final Set<JsonNode> set = new HashSet<>();
+    array.forEach( set::add );
+    return set;
+  }
+
+  private static boolean valuesEqual( @Nonnull final JsonNode desired, @Nonnull final JsonNode actual )
+  {
+    if ( desired.isNumber() && actual.isNumber() )
+    {
+      return 0 == desired.decimalValue().compareTo( actual.decimalValue() );
+    }
+    else
+    {
+      return desired.equals( actual );
+    }
+  }
+
+  @Nonnull
+  private static String describe( @Nonnull final JsonNode node )
+  {
+    return node.isMissingNode() ? "<absent>" : node.toString();
+  }
+}
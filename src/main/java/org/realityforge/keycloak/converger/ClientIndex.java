@@ -0,0 +1,136 @@
+package org.realityforge.keycloak.converger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.keycloak.admin.client.resource.RealmResource;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * An in-memory snapshot of the clients in a realm indexed by clientId and by internal id.
+ * The realm is listed once and the index is then kept up to date as clients are created,
+ * updated and deleted so that later phases of convergence never need to re-list the realm.
+ * The index may be safely accessed and modified from multiple threads.
+ */
+final class ClientIndex
+{
+  @Nonnull
+  private final Map<String, ClientRepresentation> _byClientId = new ConcurrentHashMap<>();
+  @Nonnull
+  private final Map<String, ClientRepresentation> _byId = new ConcurrentHashMap<>();
+
+  ClientIndex( @Nonnull final List<ClientRepresentation> clients )
+  {
+    clients.forEach( this::put );
+  }
+
+  /**
+   * Create an index containing every client currently present in the realm.
+   */
+  @Nonnull
+  static ClientIndex load( @Nonnull final RealmResource realm )
+  {
+    return new ClientIndex( realm.clients().findAll() );
+  }
+
+  @Nullable
+  ClientRepresentation findByClientId( @Nonnull final String clientId )
+  {
+    return _byClientId.get( clientId );
+  }
+
+  @Nullable
+  ClientRepresentation findById( @Nonnull final String id )
+  {
+    return _byId.get( id );
+  }
+
+  /**
+   * Return a snapshot of the clients currently in the index.
+   */
+  @Nonnull
+  List<ClientRepresentation> getClients()
+  {
+    return new ArrayList<>( _byId.values() );
+  }
+
+  /**
+   * Return a fingerprint of the clients in the index.
+   * The fingerprint changes if any client is added, removed or modified on the server and is used to
+   * detect that a realm has changed since a plan was computed.
+   */
+  @Nonnull
+  String fingerprint()
+  {
+    final List<String> hashes = new ArrayList<>();
+    for ( final ClientRepresentation client : _byId.values() )
+    {
+      hashes.add( client.getId() + ":" + StateManifest.hashServer( client ) );
+    }
+    Collections.sort( hashes );
+    return StateManifest.sha256( String.join( "\n", hashes ).getBytes( StandardCharsets.UTF_8 ) );
+  }
+
+  /**
+   * Add a client to the index. The client must have been assigned an id by the server.
+   */
+  void put( @Nonnull final ClientRepresentation client )
+  {
+    final String id = client.getId();
+    assert null != id;
+    final ClientRepresentation existing = _byId.put( id, client );
+    if ( null != existing && !existing.getClientId().equals( client.getClientId() ) )
+    {
+      _byClientId.remove( existing.getClientId(), existing );
+    }
+    _byClientId.put( client.getClientId(), client );
+  }
+
+  /**
+   * Update the indexed client to reflect an update of the client on the server.
+   * Every field specified in the update replaces the corresponding field of the indexed client.
+   */
+  @Nonnull
+  ClientRepresentation update( @Nonnull final ClientRepresentation client, @Nonnull final ClientRepresentation update )
+  {
+    final JsonNode changes = JsonSerialization.mapper.valueToTree( update );
+    final ClientRepresentation updated;
+    try
+    {
+      updated = JsonSerialization.mapper.readerForUpdating( copy( client ) ).readValue( changes );
+    }
+    catch ( final IOException ioe )
+    {
+      throw new IllegalStateException( "Unable to apply update to client '" + client.getClientId() + "'", ioe );
+    }
+    updated.setId( client.getId() );
+    put( updated );
+    return updated;
+  }
+
+  /**
+   * Remove the client with the specified id from the index.
+   */
+  void remove( @Nonnull final String id )
+  {
+    final ClientRepresentation client = _byId.remove( id );
+    if ( null != client )
+    {
+      _byClientId.remove( client.getClientId(), client );
+    }
+  }
+
+  @Nonnull
+  private static ClientRepresentation copy( @Nonnull final ClientRepresentation client )
+  {
+    return JsonSerialization.mapper.convertValue( client, ClientRepresentation.class );
+  }
+}
@@ -0,0 +1,352 @@
+package org.realityforge.keycloak.converger;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.keycloak.representations.idm.ClientRepresentation;
+
+/**
+ * Loads the client configurations from a directory tree or a {@link ClientBundle}.
+ * Files are selected using include and exclude globs that are matched against the path of the file relative
+ * to the directory. Files are read, compiled, rendered and parsed in parallel on the common fork-join pool but
+ * the results, including any errors, are always reported in path order. Paths within the directory that the
+ * converger writes to, such as a secrets directory or secrets bundle, are never client configurations.
+ */
+final class ClientLoader
+{
+  @Nonnull
+  static final String DEFAULT_INCLUDE = "**.json";
+  /**
+   * A loader of a single template that may fail with an IO error.
+   */
+  @FunctionalInterface
+  private interface TemplateSource
+  {
+    @Nonnull
+    Template load( @Nonnull Path file )
+      throws IOException;
+  }
+
+  @Nonnull
+  private final Path _dir;
+  @Nullable
+  private final ClientBundle _bundle;
+  @Nonnull
+  private final List<PathMatcher> _includes;
+  @Nonnull
+  private final List<PathMatcher> _excludes;
+  /**
+   * The paths relative to the directory of the files and directories that are never client configurations.
+   */
+  @Nonnull
+  private final List<Path> _excludedPaths;
+  @Nonnull
+  private final TemplateCache _templateCache;
+  private final boolean _deterministicUUIDs;
+
+  /**
+   * @param excludedPaths the paths of files and directories within the directory that are never client
+   *                      configurations, relative to the directory.
+   */
+  ClientLoader( @Nonnull final Path dir,
+                @Nonnull final List<String> includes,
+                @Nonnull final List<String> excludes,
+                @Nonnull final List<Path> excludedPaths,
+                @Nonnull final TemplateCache templateCache,
+                final boolean deterministicUUIDs )
+  {
+    this( dir, null, includes, excludes, excludedPaths, templateCache, deterministicUUIDs );
+  }
+
+  /**
+   * Create a loader that loads the templates from a bundle rather than a directory.
+   * The templates are keyed by their path in the bundled directory resolved against the bundle file.
+   */
+  ClientLoader( @Nonnull final ClientBundle bundle,
+                @Nonnull final List<String> includes,
+                @Nonnull final List<String> excludes,
+                final boolean deterministicUUIDs )
+  {
+    this( bundle.getFile(),
+          bundle,
+          includes,
+          excludes,
+          Collections.emptyList(),
+          new TemplateCache(),
+          deterministicUUIDs );
+  }
+
+  private ClientLoader( @Nonnull final Path dir,
+                        @Nullable final ClientBundle bundle,
+                        @Nonnull final List<String> includes,
+                        @Nonnull final List<String> excludes,
+                        @Nonnull final List<Path> excludedPaths,
+                        @Nonnull final TemplateCache templateCache,
+                        final boolean deterministicUUIDs )
+  {
+    _dir = dir;
+    _bundle = bundle;
+    final FileSystem fileSystem = dir.getFileSystem();
+    _includes = toMatchers( fileSystem, includes.isEmpty() ? Collections.singletonList( DEFAULT_INCLUDE ) : includes );
+    _excludes = toMatchers( fileSystem, excludes );
+    _excludedPaths = Collections.unmodifiableList( new ArrayList<>( excludedPaths ) );
+    _templateCache = templateCache;
+    _deterministicUUIDs = deterministicUUIDs;
+  }
+
+  /**
+   * Return true if the file with the specified path relative to the directory is a client configuration.
+   */
+  boolean isClientConfiguration( @Nonnull final Path relativePath )
+  {
+    return _includes.stream().anyMatch( m -> m.matches( relativePath ) ) &&
+           _excludes.stream().noneMatch( m -> m.matches( relativePath ) ) &&
+           _excludedPaths.stream().noneMatch( relativePath::startsWith );
+  }
+
+  /**
+   * Return the client configuration files in the directory tree in path order.
+   */
+  @Nonnull
+  List<Path> listFiles()
+    throws IOException
+  {
+    try ( final Stream<Path> stream = Files.walk( _dir ) )
+    {
+      return stream
+        .filter( Files::isRegularFile )
+        .filter( file -> isClientConfiguration( _dir.relativize( file ) ) )
+        .sorted()
+        .collect( Collectors.toList() );
+    }
+  }
+
+  /**
+   * Load and compile every client configuration template in the directory tree or bundle.
+   */
+  @Nonnull
+  Map<Path, Template> loadTemplates()
+    throws IOException
+  {
+    return loadTemplates( clientId -> true );
+  }
+
+  /**
+   * Load and compile the client configuration templates that may define a selected client.
+   * The templates in a bundle whose clientId does not depend upon settings are skipped without being read
+   * unless the clientId is selected. Every template in a directory tree is loaded.
+   *
+   * @param isSelected the predicate that returns true for the clientIds of the selected clients.
+   */
+  @Nonnull
+  Map<Path, Template> loadTemplates( @Nonnull final Predicate<String> isSelected )
+    throws IOException
+  {
+    if ( null == _bundle )
+    {
+      return loadTemplates( listFiles() );
+    }
+    else
+    {
+      final List<Path> files = new ArrayList<>();
+      for ( final Map.Entry<Path, ClientBundle.Entry> entry : _bundle.getEntries().entrySet() )
+      {
+        final ClientBundle.Entry bundled = entry.getValue();
+        if ( isClientConfiguration( _dir.getFileSystem().getPath( bundled.getPath() ) ) &&
+             ( null == bundled.getClientId() || isSelected.test( bundled.getClientId() ) ) )
+        {
+          files.add( entry.getKey() );
+        }
+      }
+      return loadTemplates( files );
+    }
+  }
+
+  /**
+   * Load and compile the specified client configuration templates.
+   */
+  @Nonnull
+  Map<Path, Template> loadTemplates( @Nonnull final List<Path> files )
+  {
+    final ClientBundle bundle = _bundle;
+    final TemplateSource source =
+      null == bundle ?
+      _templateCache::get :
+      file -> Template.compile( bundle.readSource( Objects.requireNonNull( bundle.getEntries().get( file ) ) ) );
+    final Map<Path, Object> results = new ConcurrentHashMap<>();
+    files.parallelStream().forEach( file -> {
+      try
+      {
+        results.put( file, source.load( file ) );
+      }
+      catch ( final IOException | RuntimeException e )
+      {
+        results.put( file, e );
+      }
+    } );
+    final Map<Path, Template> templates = new LinkedHashMap<>();
+    for ( final Path file : files )
+    {
+      final Object result = results.get( file );
+      if ( result instanceof Template )
+      {
+        templates.put( file, (Template) result );
+      }
+      else
+      {
+        throw new IllegalStateException( "Error reading client configuration from file " + file,
+                                         (Throwable) result );
+      }
+    }
+    return templates;
+  }
+
+  /**
+   * Render and parse the templates for the specified realm returning the clients keyed by clientId.
+   *
+   * @param fallback the converter used for configurations that are not keycloak client json.
+   */
+  @Nonnull
+  Map<String, ClientRepresentation> buildClients( @Nonnull final RealmConfig config,
+                                                  @Nonnull final Map<Path, Template> templates,
+                                                  @Nonnull final Function<String, ClientRepresentation> fallback )
+  {
+    return collectClients( renderClients( config, templates, fallback ) );
+  }
+
+  /**
+   * Render and parse the templates for the specified realm returning the clients keyed by the file that they
+   * are defined in. The clients are ordered by the order of the templates.
+   *
+   * @param fallback the converter used for configurations that are not keycloak client json.
+   */
+  @Nonnull
+  Map<Path, ClientRepresentation> renderClients( @Nonnull final RealmConfig config,
+                                                 @Nonnull final Map<Path, Template> templates,
+                                                 @Nonnull final Function<String, ClientRepresentation> fallback )
+  {
+    // Report every missing variable in every file before attempting to render any template
+    final List<String> missingVariables = new ArrayList<>();
+    for ( final Map.Entry<Path, Template> entry : templates.entrySet() )
+    {
+      final Set<String> missing = entry.getValue().getMissingVariables( config.getEnvs() );
+      if ( !missing.isEmpty() )
+      {
+        missingVariables.add( "Unable to replace variables " + missing + " in client configuration file " +
+                              entry.getKey() + " for realm " + config.getRealmName() );
+      }
+    }
+    if ( !missingVariables.isEmpty() )
+    {
+      throw new IllegalStateException( String.join( System.getProperty( "line.separator" ), missingVariables ) );
+    }
+
+    final Map<Path, Object> results = new ConcurrentHashMap<>();
+    templates.entrySet().parallelStream().forEach( entry -> {
+      try
+      {
+        final String data = render( config, entry.getValue() );
+        results.put( entry.getKey(), ClientConverter.convert( data, fallback ) );
+      }
+      catch ( final RuntimeException e )
+      {
+        results.put( entry.getKey(), e );
+      }
+    } );
+
+    final Map<Path, ClientRepresentation> clients = new LinkedHashMap<>();
+    for ( final Path file : templates.keySet() )
+    {
+      final Object result = results.get( file );
+      if ( result instanceof RuntimeException )
+      {
+        throw new IllegalStateException( "Error building client configuration from file " + file +
+                                         " for realm " + config.getRealmName() + ". Error: " + result,
+                                         (RuntimeException) result );
+      }
+      clients.put( file, (ClientRepresentation) result );
+    }
+    return clients;
+  }
+
+  /**
+   * Return the clients keyed by clientId, verifying that no clientId is defined by more than one file.
+   *
+   * @param clientsByFile the clients keyed by the file that they are defined in.
+   */
+  @Nonnull
+  static Map<String, ClientRepresentation> collectClients( @Nonnull final Map<Path, ClientRepresentation> clientsByFile )
+  {
+    final Map<String, ClientRepresentation> clients = new LinkedHashMap<>();
+    final Map<String, Path> definedIn = new HashMap<>();
+    final List<String> duplicates = new ArrayList<>();
+    for ( final Map.Entry<Path, ClientRepresentation> entry : clientsByFile.entrySet() )
+    {
+      final Path file = entry.getKey();
+      final ClientRepresentation client = entry.getValue();
+      final String clientID = client.getClientId();
+      final Path existing = definedIn.putIfAbsent( clientID, file );
+      if ( null != existing )
+      {
+        duplicates.add( "Client with clientId '" + clientID + "' defined multiple times in client directory " +
+                        "(" + existing + " and " + file + ")" );
+      }
+      else
+      {
+        clients.put( clientID, client );
+      }
+    }
+    if ( !duplicates.isEmpty() )
+    {
+      throw new IllegalStateException( String.join( System.getProperty( "line.separator" ), duplicates ) );
+    }
+    return clients;
+  }
+
+  /**
+   * Render the client template for the realm.
+   * Need to replace UUIDs as the database uses them to uniquely distinguish elements. If deterministic
+   * UUIDs are enabled and the template has a clientId then the replacements are derived from the realm,
+   * clientId and original UUID so that the output is identical across runs, otherwise random UUIDs are used.
+   */
+  @Nonnull
+  String render( @Nonnull final RealmConfig config, @Nonnull final Template template )
+  {
+    final Map<String, String> envs = config.getEnvs();
+    final String clientID = _deterministicUUIDs ? template.renderClientId( envs ) : null;
+    return template.render( envs,
+                            null == clientID ?
+                            uuid -> UUID.randomUUID().toString() :
+                            uuid -> DeterministicUUIDs.replacementFor( config.getRealmName(), clientID, uuid ) );
+  }
+
+  @Nonnull
+  private static List<PathMatcher> toMatchers( @Nonnull final FileSystem fileSystem,
+                                               @Nonnull final List<String> globs )
+  {
+    final List<PathMatcher> matchers = new ArrayList<>();
+    for ( final String glob : globs )
+    {
+      matchers.add( fileSystem.getPathMatcher( "glob:" + glob ) );
+    }
+    return matchers;
+  }
+}
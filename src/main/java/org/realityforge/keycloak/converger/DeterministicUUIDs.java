@@ -0,0 +1,64 @@
+package org.realityforge.keycloak.converger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import javax.annotation.Nonnull;
+
+/**
+ * Derive replacement UUIDs from the realm, client and original UUID so that repeated runs produce identical output.
+ * The UUIDs are name-based (version 5) UUIDs as described in RFC 4122.
+ */
+final class DeterministicUUIDs
+{
+  /**
+   * The namespace under which all replacement UUIDs are generated.
+   */
+  @Nonnull
+  private static final UUID NAMESPACE = UUID.fromString( "5d8e3c39-8ac1-4c6b-9f3e-6f1e3ad5c2b7" );
+
+  private DeterministicUUIDs()
+  {
+  }
+
+  /**
+   * Return the replacement for the specified uuid when it appears in the specified client in the specified realm.
+   */
+  @Nonnull
+  static String replacementFor( @Nonnull final String realmName,
+                                @Nonnull final String clientId,
+                                @Nonnull final String uuid )
+  {
+    return nameUUID( NAMESPACE, realmName + "/" + clientId + "/" + uuid.toLowerCase() ).toString();
+  }
+
+  @Nonnull
+  static UUID nameUUID( @Nonnull final UUID namespace, @Nonnull final String name )
+  {
+    final MessageDigest digest;
+    try
+    {
+      digest = MessageDigest.getInstance( "SHA-1" );
+    }
+    catch ( final NoSuchAlgorithmException e )
+    {
+      throw new IllegalStateException( "SHA-1 digest unavailable", e );
+    }
+    final ByteBuffer namespaceBytes = ByteBuffer.allocate( 16 );
+    namespaceBytes.putLong( namespace.getMostSignificantBits() );
+    namespaceBytes.putLong( namespace.getLeastSignificantBits() );
+    digest.update( namespaceBytes.array() );
+    final byte[] hash = digest.digest( name.getBytes( StandardCharsets.UTF_8 ) );
+
+    // Set the version to 5 and the variant to IETF
+    hash[ 6 ] &= 0x0f;
+    hash[ 6 ] |= 0x50;
+    hash[ 8 ] &= 0x3f;
+    hash[ 8 ] |= 0x80;
+
+    final ByteBuffer buffer = ByteBuffer.wrap( hash, 0, 16 );
+    return new UUID( buffer.getLong(), buffer.getLong() );
+  }
+}
@@ -0,0 +1,142 @@
+package org.realityforge.keycloak.converger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Watches a directory tree for changes to files.
+ * Directories created within the tree are watched as they appear. Bursts of changes, such as an editor
+ * writing a file several times or a checkout touching many files, are debounced and reported together.
+ */
+final class DirectoryWatcher
+  implements Closeable
+{
+  /**
+   * Changes are reported after at most this many debounce periods even if changes are still occurring.
+   */
+  private static final int MAX_DEBOUNCE_PERIODS = 10;
+  @Nonnull
+  private final WatchService _watchService;
+  @Nonnull
+  private final Map<WatchKey, Path> _directories = new HashMap<>();
+
+  DirectoryWatcher( @Nonnull final Path dir )
+    throws IOException
+  {
+    _watchService = FileSystems.getDefault().newWatchService();
+    registerTree( dir );
+  }
+
+  /**
+   * Wait for changes and return the paths that changed once no further changes occur for the debounce period.
+   * The returned paths may include directories and paths that have since been deleted.
+   *
+   * @param timeoutMillis  the maximum time to wait for the first change.
+   * @param debounceMillis the period without changes that ends a burst of changes.
+   * @return the changed paths, an empty set if no change occurred before the timeout or null if changes were
+   * lost and the entire tree must be rescanned.
+   */
+  @Nullable
+  Set<Path> awaitChanges( final long timeoutMillis, final long debounceMillis )
+    throws IOException, InterruptedException
+  {
+    final Set<Path> changes = new TreeSet<>();
+    boolean overflow = false;
+    WatchKey key = _watchService.poll( timeoutMillis, TimeUnit.MILLISECONDS );
+    final long deadline = System.currentTimeMillis() + debounceMillis * MAX_DEBOUNCE_PERIODS;
+    while ( null != key )
+    {
+      overflow |= processEvents( key, changes );
+      key = System.currentTimeMillis() < deadline ? _watchService.poll( debounceMillis, TimeUnit.MILLISECONDS ) : null;
+    }
+    return overflow ? null : changes;
+  }
+
+  /**
+   * Return true while any directory in the watched tree exists.
+   */
+  boolean isWatching()
+  {
+    return !_directories.isEmpty();
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    _watchService.close();
+  }
+
+  /**
+   * Record the paths changed by the events of the key.
+   *
+   * @return true if events were lost.
+   */
+  private boolean processEvents( @Nonnull final WatchKey key, @Nonnull final Set<Path> changes )
+    throws IOException
+  {
+    boolean overflow = false;
+    final Path dir = _directories.get( key );
+    for ( final WatchEvent<?> event : key.pollEvents() )
+    {
+      if ( StandardWatchEventKinds.OVERFLOW == event.kind() || null == dir )
+      {
+        overflow = true;
+      }
+      else
+      {
+        final Path path = dir.resolve( (Path) event.context() );
+        changes.add( path );
+        if ( StandardWatchEventKinds.ENTRY_CREATE == event.kind() &&
+             Files.isDirectory( path, LinkOption.NOFOLLOW_LINKS ) )
+        {
+          // Files may have been created in the directory before it was registered so report every file
+          registerTree( path );
+          try ( final Stream<Path> stream = Files.walk( path ) )
+          {
+            changes.addAll( stream.filter( Files::isRegularFile ).collect( Collectors.toList() ) );
+          }
+        }
+      }
+    }
+    if ( !key.reset() )
+    {
+      // The directory has been deleted
+      _directories.remove( key );
+    }
+    return overflow;
+  }
+
+  private void registerTree( @Nonnull final Path dir )
+    throws IOException
+  {
+    try ( final Stream<Path> stream = Files.walk( dir ) )
+    {
+      for ( final Path directory : stream.filter( Files::isDirectory ).collect( Collectors.toList() ) )
+      {
+        final WatchKey key = directory.register( _watchService,
+                                                 StandardWatchEventKinds.ENTRY_CREATE,
+                                                 StandardWatchEventKinds.ENTRY_DELETE,
+                                                 StandardWatchEventKinds.ENTRY_MODIFY );
+        _directories.put( key, directory );
+      }
+    }
+  }
+}
@@ -1,29 +1,56 @@
 package org.realityforge.keycloak.converger;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.json.Json;
-import javax.json.JsonObject;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
+import org.keycloak.admin.client.CreatedResponseUtil;
 import org.keycloak.admin.client.Keycloak;
 import org.keycloak.admin.client.resource.ClientResource;
+import org.keycloak.admin.client.resource.ProtocolMappersResource;
 import org.keycloak.admin.client.resource.RealmResource;
+import org.keycloak.admin.client.token.TokenManager;
 import org.keycloak.representations.idm.ClientRepresentation;
 import org.keycloak.representations.idm.CredentialRepresentation;
+import org.keycloak.representations.idm.PartialImportRepresentation;
+import org.keycloak.representations.idm.ProtocolMapperRepresentation;
+import org.keycloak.util.JsonSerialization;
 import org.realityforge.getopt4j.CLArgsParser;
 import org.realityforge.getopt4j.CLOption;
 import org.realityforge.getopt4j.CLOptionDescriptor;
@@ -43,6 +70,35 @@ public class Main
   private static final int DELETE_UNKNOWN_CLIENTS_OPT = 7;
   private static final int DELETE_CLIENT_OPT = 8;
   private static final int SECRETS_DIR_OPT = 9;
+  private static final int DETERMINISTIC_UUIDS_OPT = 10;
+  private static final int CONCURRENCY_OPT = 11;
+  private static final int REALM_ENV_OPT = 12;
+  private static final int REALM_SECRETS_DIR_OPT = 13;
+  private static final int REALM_CONCURRENCY_OPT = 14;
+  private static final int INCLUDE_OPT = 15;
+  private static final int EXCLUDE_OPT = 16;
+  private static final int STATE_FILE_OPT = 17;
+  private static final int PLAN_FILE_OPT = 18;
+  private static final int SECRETS_BUNDLE_OPT = 19;
+  private static final int HTTP_POOL_SIZE_OPT = 20;
+  private static final int HTTP_KEEP_ALIVE_OPT = 21;
+  private static final int CONNECT_TIMEOUT_OPT = 22;
+  private static final int READ_TIMEOUT_OPT = 23;
+  private static final int GZIP_OPT = 24;
+  private static final int MAX_RETRIES_OPT = 25;
+  private static final int RATE_LIMIT_OPT = 26;
+  private static final int TOKEN_CACHE_OPT = 27;
+  private static final int DEBOUNCE_OPT = 28;
+  private static final int RECONCILE_INTERVAL_OPT = 29;
+  private static final int BULK_OPT = 30;
+  private static final int BULK_BATCH_SIZE_OPT = 31;
+  private static final int METRICS_FILE_OPT = 32;
+  private static final int PROMETHEUS_FILE_OPT = 33;
+  private static final int CLIENT_OPT = 34;
+  private static final int CHANGED_FILE_OPT = 35;
+  private static final int CHANGED_FILES_FROM_OPT = 36;
+  private static final int BUNDLE_OPT = 37;
+  private static final int TARGETS_OPT = 38;
   private static final int ADMIN_USERNAME_OPT = 'u';
   private static final int ADMIN_PASSWORD_OPT = 'p';
   private static final int ENV_OPT = 'e';
@@ -76,17 +132,41 @@ public class Main
                             ADMIN_PASSWORD_OPT,
                             "the password to authenticate with." ),
     new CLOptionDescriptor( "realm-name",
-                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            CLOptionDescriptor.ARGUMENT_REQUIRED | CLOptionDescriptor.DUPLICATES_ALLOWED,
                             REALM_NAME_OPT,
-                            "the name of the realm to update." ),
+                            "the name of the realm to update. May be specified multiple times to converge several realms." ),
+    new CLOptionDescriptor( "realm-env",
+                            CLOptionDescriptor.ARGUMENTS_REQUIRED_2 | CLOptionDescriptor.DUPLICATES_ALLOWED,
+                            REALM_ENV_OPT,
+                            "Settings that are replaced in client configurations for a single realm and override any --env setting. Specified as REALM=KEY=VALUE." ),
+    new CLOptionDescriptor( "realm-secrets-dir",
+                            CLOptionDescriptor.ARGUMENTS_REQUIRED_2 | CLOptionDescriptor.DUPLICATES_ALLOWED,
+                            REALM_SECRETS_DIR_OPT,
+                            "the directory where client secrets for a single realm are downloaded to. Specified as REALM=DIR." ),
+    new CLOptionDescriptor( "realm-concurrency",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            REALM_CONCURRENCY_OPT,
+                            "the maximum number of realms converged concurrently. Defaults to 2." ),
     new CLOptionDescriptor( "dir",
                             CLOptionDescriptor.ARGUMENT_REQUIRED,
                             DIR_OPT,
                             "the directory of client configurations." ),
+    new CLOptionDescriptor( "include",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED | CLOptionDescriptor.DUPLICATES_ALLOWED,
+                            INCLUDE_OPT,
+                            "a glob matched against the path relative to the client configuration directory that selects the client configurations. Defaults to '" + ClientLoader.DEFAULT_INCLUDE + "'." ),
+    new CLOptionDescriptor( "exclude",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED | CLOptionDescriptor.DUPLICATES_ALLOWED,
+                            EXCLUDE_OPT,
+                            "a glob matched against the path relative to the client configuration directory that excludes files from the client configurations." ),
     new CLOptionDescriptor( "secrets-dir",
                             CLOptionDescriptor.ARGUMENT_REQUIRED,
                             SECRETS_DIR_OPT,
                             "the directory where client secrets are downloaded to." ),
+    new CLOptionDescriptor( "secrets-bundle",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            SECRETS_BUNDLE_OPT,
+                            "the name of a file in the secrets directory that all client secrets are written to rather than writing a file per client. The file is written in the properties format if the name ends with '.properties' and in the json format otherwise." ),
     new CLOptionDescriptor( "env",
                             CLOptionDescriptor.ARGUMENTS_REQUIRED_2 | CLOptionDescriptor.DUPLICATES_ALLOWED,
                             ENV_OPT,
@@ -107,24 +187,153 @@ public class Main
                             CLOptionDescriptor.ARGUMENT_REQUIRED | CLOptionDescriptor.DUPLICATES_ALLOWED,
                             DELETE_CLIENT_OPT,
                             "Delete specific client." ),
+    new CLOptionDescriptor( "deterministic-uuids",
+                            CLOptionDescriptor.ARGUMENT_DISALLOWED,
+                            DETERMINISTIC_UUIDS_OPT,
+                            "Derive replacement UUIDs from the realm, clientId and original UUID rather than generating random UUIDs." ),
+    new CLOptionDescriptor( "concurrency",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            CONCURRENCY_OPT,
+                            "the maximum number of concurrent requests made to the server. Defaults to 4." ),
+    new CLOptionDescriptor( "http-pool-size",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            HTTP_POOL_SIZE_OPT,
+                            "the maximum number of pooled http connections to the server. Defaults to enough connections for the concurrency of every realm." ),
+    new CLOptionDescriptor( "http-keep-alive",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            HTTP_KEEP_ALIVE_OPT,
+                            "the maximum number of seconds that an idle http connection is kept alive. Defaults to 30." ),
+    new CLOptionDescriptor( "connect-timeout",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            CONNECT_TIMEOUT_OPT,
+                            "the number of seconds to wait when connecting to the server. Defaults to 10." ),
+    new CLOptionDescriptor( "read-timeout",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            READ_TIMEOUT_OPT,
+                            "the number of seconds to wait for a response from the server. Defaults to 60." ),
+    new CLOptionDescriptor( "gzip",
+                            CLOptionDescriptor.ARGUMENT_DISALLOWED,
+                            GZIP_OPT,
+                            "Request gzip compressed responses from the server." ),
+    new CLOptionDescriptor( "max-retries",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            MAX_RETRIES_OPT,
+                            "the maximum number of times a request that fails with a transient error is retried. Defaults to 4." ),
+    new CLOptionDescriptor( "rate-limit",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            RATE_LIMIT_OPT,
+                            "the maximum number of requests per second made to the server. Defaults to unlimited." ),
+    new CLOptionDescriptor( "token-cache",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            TOKEN_CACHE_OPT,
+                            "a file in which admin tokens are cached between runs. Cached tokens are reused or refreshed rather than authenticating with the password on every run." ),
+    new CLOptionDescriptor( "debounce",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            DEBOUNCE_OPT,
+                            "the number of milliseconds without further changes that the watch command waits before converging changed files. Defaults to 300." ),
+    new CLOptionDescriptor( "reconcile-interval",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            RECONCILE_INTERVAL_OPT,
+                            "the number of seconds between full reconciliations of every realm by the watch command. Defaults to 300." ),
+    new CLOptionDescriptor( "bulk",
+                            CLOptionDescriptor.ARGUMENT_DISALLOWED,
+                            BULK_OPT,
+                            "Create new clients in batches using the partial import endpoint of the realm. Clients that can not be imported are created individually." ),
+    new CLOptionDescriptor( "bulk-batch-size",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            BULK_BATCH_SIZE_OPT,
+                            "the maximum number of clients imported in a single request when --bulk is specified. Defaults to 100." ),
     new CLOptionDescriptor( "verbose",
                             CLOptionDescriptor.ARGUMENT_DISALLOWED,
                             VERBOSE_OPT,
-                            "print verbose message while operating." )
+                            "print verbose message while operating." ),
+    new CLOptionDescriptor( "state-file",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            STATE_FILE_OPT,
+                            "a file recording the clients converged by the last successful run. Clients that are unchanged both in the client directory and on the server since the last run are skipped." ),
+    new CLOptionDescriptor( "plan-file",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            PLAN_FILE_OPT,
+                            "the file that the plan command writes the planned changes to and that the apply command reads the planned changes from." ),
+    new CLOptionDescriptor( "metrics-file",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            METRICS_FILE_OPT,
+                            "a file that a json summary of the time spent in each phase and the count, latency and size of the requests made to the server is written to." ),
+    new CLOptionDescriptor( "prometheus-file",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            PROMETHEUS_FILE_OPT,
+                            "a file that the metrics are written to in the Prometheus text format. The file should be in the directory read by the textfile collector of the node exporter." ),
+    new CLOptionDescriptor( "client",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED | CLOptionDescriptor.DUPLICATES_ALLOWED,
+                            CLIENT_OPT,
+                            "the clientId of a client to converge. The clientId may contain the wildcards '*' and '?'. Only the selected clients are converged and the realm is not listed." ),
+    new CLOptionDescriptor( "changed-file",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED | CLOptionDescriptor.DUPLICATES_ALLOWED,
+                            CHANGED_FILE_OPT,
+                            "a client configuration file that has changed. Only the clients defined in changed files are converged and the realm is not listed." ),
+    new CLOptionDescriptor( "changed-files-from",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            CHANGED_FILES_FROM_OPT,
+                            "a file listing changed client configuration files, one per line, such as the output of git diff --name-only. Specify - to read the list from standard input." ),
+    new CLOptionDescriptor( "bundle",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            BUNDLE_OPT,
+                            "a client bundle file. The bundle command writes the client configurations in the configuration directory to the bundle and the other commands read the client configurations from the bundle rather than the configuration directory." ),
+    new CLOptionDescriptor( "targets",
+                            CLOptionDescriptor.ARGUMENT_REQUIRED,
+                            TARGETS_OPT,
+                            "a json file listing the keycloak servers to converge concurrently, each with its own credentials, realms, settings and secrets directory. Used instead of --server-url." )
   };
+  @Nonnull
+  private static final String CONVERGE_COMMAND = "converge";
+  @Nonnull
+  private static final String PLAN_COMMAND = "plan";
+  @Nonnull
+  private static final String APPLY_COMMAND = "apply";
+  @Nonnull
+  private static final String WATCH_COMMAND = "watch";
+  @Nonnull
+  private static final String BUNDLE_COMMAND = "bundle";
+  @Nonnull
+  private static final String CHECK_COMMAND = "check";
   private static final int SUCCESS_EXIT_CODE = 0;
   private static final int ERROR_PARSING_ARGS_EXIT_CODE = 1;
   private static final int ERROR_PATCHING_CODE = 2;
   private static final int ERROR_WRITING_CLIENT_SECRET_CODE = 3;
+  private static final int DRIFT_DETECTED_EXIT_CODE = 4;
+  private static final int ERROR_CHECKING_EXIT_CODE = 5;
   private static boolean c_verbose;
   private static boolean c_deleteUnmatchedClients;
+  private static boolean c_deterministicUUIDs;
+  private static int c_concurrency = 4;
+  private static int c_realmConcurrency = 2;
+  private static int c_httpPoolSize;
+  private static int c_httpKeepAlive = 30;
+  private static int c_connectTimeout = 10;
+  private static int c_readTimeout = 60;
+  private static boolean c_gzip;
+  private static int c_maxRetries = 4;
+  private static int c_rateLimit;
+  private static int c_debounce = 300;
+  private static int c_reconcileInterval = 300;
+  private static boolean c_bulk;
+  private static int c_bulkBatchSize = 100;
+  private static RequestExecutor c_requestExecutor;
   @Nonnull
   private static final Map<String, String> c_envs = new HashMap<>();
   @Nonnull
   private static final List<String> c_unmanagedClients = new ArrayList<>();
   @Nonnull
   private static final List<String> c_clientsToDelete = new ArrayList<>();
+  @Nonnull
+  private static final List<String> c_targetClients = new ArrayList<>();
+  @Nonnull
+  private static final List<Pattern> c_targetClientPatterns = new ArrayList<>();
+  @Nonnull
+  private static final List<Path> c_changedFiles = new ArrayList<>();
   private static File c_dir;
+  @Nullable
+  private static File c_bundle;
   @Nonnull
   private static String c_adminRealmName = "master";
   @Nonnull
@@ -135,9 +344,51 @@ public class Main
   private static String c_adminPassword;
   @Nullable
   private static String c_serverURL;
+  @Nonnull
+  private static final List<String> c_realmNames = new ArrayList<>();
+  @Nonnull
+  private static final Map<String, Map<String, String>> c_realmEnvs = new HashMap<>();
+  @Nonnull
+  private static final Map<String, File> c_realmSecretsDirs = new HashMap<>();
+  @Nonnull
+  private static final List<RealmConfig> c_realms = new ArrayList<>();
   @Nullable
-  private static String c_realmName;
+  private static File c_targetsFile;
+  @Nonnull
+  private static final List<TargetConfig> c_targets = new ArrayList<>();
+  /**
+   * The number of clients created, updated or deleted in each realm, used to report whether each target had
+   * diverged. Secret collection does not change the realm and is not counted.
+   */
+  @Nonnull
+  private static final Map<RealmConfig, Integer> c_appliedOperations = new ConcurrentHashMap<>();
+  /**
+   * Set when a secret can not be written so that the run exits with {@link #ERROR_WRITING_CLIENT_SECRET_CODE}.
+   * The failure is otherwise handled as a failure to converge the realm so that other realms and targets complete.
+   */
+  private static volatile boolean c_secretWriteFailed;
   private static File c_secretsDir;
+  @Nonnull
+  private static final TemplateCache c_templateCache = new TemplateCache();
+  @Nonnull
+  private static final List<String> c_includes = new ArrayList<>();
+  @Nonnull
+  private static final List<String> c_excludes = new ArrayList<>();
+  @Nullable
+  private static File c_stateFile;
+  private static File c_tokenCache;
+  private static File c_metricsFile;
+  private static File c_prometheusFile;
+  @Nonnull
+  private static final Metrics c_metrics = new Metrics();
+  @Nullable
+  private static StateManifest c_stateManifest;
+  @Nonnull
+  private static String c_command = CONVERGE_COMMAND;
+  @Nullable
+  private static File c_planFile;
+  @Nullable
+  private static String c_secretsBundle;
 
   public static void main( @Nonnull final String[] args )
   {
@@ -149,411 +400,2352 @@ public class Main
 
     try
     {
-      if ( c_verbose )
+      if ( BUNDLE_COMMAND.equals( c_command ) )
+      {
+        writeBundle();
+        System.exit( SUCCESS_EXIT_CODE );
+        return;
+      }
+      final ChangePlan plan = APPLY_COMMAND.equals( c_command ) ? loadPlan() : null;
+      if ( APPLY_COMMAND.equals( c_command ) && null == plan )
       {
-        info( "Converging realm " + c_realmName );
+        System.exit( ERROR_PARSING_ARGS_EXIT_CODE );
+        return;
       }
+      // Every target shares the request executor so a rejected token is discarded by every client factory
+      final List<AdminClientFactory> clientFactories = new CopyOnWriteArrayList<>();
+      c_requestExecutor =
+        new RequestExecutor( c_maxRetries,
+                             c_concurrency * c_realmConcurrency * Math.max( 1, c_targets.size() ),
+                             c_rateLimit,
+                             () -> clientFactories.forEach( AdminClientFactory::invalidateToken ),
+                             Main::info );
+      // When converging multiple targets each target is authenticated as it is converged
       final Keycloak keycloak =
-        Keycloak.getInstance( c_serverURL,
-                              c_adminRealmName,
-                              c_adminUsername,
-                              c_adminPassword,
-                              c_adminClient,
-                              c_adminPassword );
-
-      final RealmResource realm = keycloak.realm( c_realmName );
+        c_targets.isEmpty() ?
+        connect( clientFactories,
+                 Objects.requireNonNull( c_serverURL ),
+                 c_adminRealmName,
+                 c_adminClient,
+                 c_adminUsername,
+                 Objects.requireNonNull( c_adminPassword ) ) :
+        null;
 
-      final Map<String, String> clients = buildClientConfigurations();
-      uploadClients( realm, clients );
-      if ( c_deleteUnmatchedClients )
+      if ( null != c_stateFile )
       {
-        removeUnmatchedClients( realm, clients );
+        c_stateManifest = StateManifest.load( c_stateFile.toPath() );
       }
-      if ( !c_clientsToDelete.isEmpty() )
+      final boolean success;
+      if ( null != plan )
       {
-        removeClients( realm, c_clientsToDelete::contains );
+        success = applyPlan( Objects.requireNonNull( keycloak ), plan );
       }
-      collectClientSecrets( realm, clients );
-
-      System.exit( SUCCESS_EXIT_CODE );
+      else
+      {
+        final ClientLoader loader =
+          null != c_bundle ?
+          new ClientLoader( ClientBundle.open( c_bundle.toPath() ), c_includes, c_excludes, c_deterministicUUIDs ) :
+          new ClientLoader( c_dir.toPath(),
+                            c_includes,
+                            c_excludes,
+                            getSecretsPaths( c_dir.toPath() ),
+                            c_templateCache,
+                            c_deterministicUUIDs );
+        // Clients selected by clientId may be defined in any file but otherwise only the changed files are loaded
+        final Map<Path, Template> templates =
+          c_metrics.time( "load-config",
+                          () -> !isTargeted() ?
+                                loader.loadTemplates() :
+                                c_targetClients.isEmpty() ?
+                                loader.loadTemplates( selectChangedFiles( loader ) ) :
+                                loader.loadTemplates( Main::isTargetClient ) );
+        if ( CHECK_COMMAND.equals( c_command ) )
+        {
+          final int exitCode = checkRealms( Objects.requireNonNull( keycloak ), loader, templates );
+          writeMetrics( ERROR_CHECKING_EXIT_CODE != exitCode );
+          System.exit( exitCode );
+          return;
+        }
+        success = null == keycloak ?
+                  convergeTargets( clientFactories, loader, templates ) :
+                  PLAN_COMMAND.equals( c_command ) ?
+                  writePlan( keycloak, loader, templates ) :
+                  WATCH_COMMAND.equals( c_command ) ?
+                  watchRealms( keycloak, loader, templates ) :
+                  isTargeted() ?
+                  convergeTargetedRealms( keycloak, loader, templates, c_realms ) :
+                  convergeRealms( keycloak, loader, templates, c_realms );
+      }
+      // A plan only reads the realms so the state manifest is left untouched
+      if ( !PLAN_COMMAND.equals( c_command ) )
+      {
+        saveStateManifest();
+      }
+      writeMetrics( success );
+      System.exit( success ? SUCCESS_EXIT_CODE : getFailureExitCode() );
     }
     catch ( final Exception e )
     {
-      error( "Error converging keycloak realm " + c_realmName + ". Error: " + e );
+      error( "Error " + ( CHECK_COMMAND.equals( c_command ) ? "checking" : "converging" ) + " keycloak. " +
+             "Error: " + e );
       if ( c_verbose )
       {
         e.printStackTrace( System.out );
       }
-      System.exit( ERROR_PATCHING_CODE );
+      writeMetrics( false );
+      System.exit( CHECK_COMMAND.equals( c_command ) ? ERROR_CHECKING_EXIT_CODE : getFailureExitCode() );
     }
   }
 
-  private static void removeUnmatchedClients( @Nonnull final RealmResource realm,
-                                              @Nonnull final Map<String, String> clients )
+  /**
+   * Return the exit code of a run that failed to converge, distinguishing a failure to write secrets.
+   */
+  private static int getFailureExitCode()
   {
-    removeClients( realm, clientId -> !clients.containsKey( clientId ) && !c_unmanagedClients.contains( clientId ) );
+    return c_secretWriteFailed ? ERROR_WRITING_CLIENT_SECRET_CODE : ERROR_PATCHING_CODE;
   }
 
-  private static void removeClients( @Nonnull final RealmResource realm, @Nonnull final Predicate<String> shouldDelete )
+  /**
+   * Create an admin client for the server and authenticate.
+   *
+   * @param clientFactories the list that the factory used to create the client is added to.
+   */
+  @Nonnull
+  private static Keycloak connect( @Nonnull final List<AdminClientFactory> clientFactories,
+                                   @Nonnull final String serverUrl,
+                                   @Nonnull final String adminRealm,
+                                   @Nonnull final String adminClient,
+                                   @Nonnull final String adminUsername,
+                                   @Nonnull final String adminPassword )
+    throws IOException
   {
-    for ( final ClientRepresentation client : realm.clients().findAll() )
-    {
-      final String clientId = client.getClientId();
-      if ( shouldDelete.test( clientId ) )
+    final int poolSize = 0 != c_httpPoolSize ? c_httpPoolSize : c_concurrency * c_realmConcurrency + 1;
+    final AdminClientFactory clientFactory =
+      new AdminClientFactory( poolSize,
+                              c_httpKeepAlive,
+                              c_connectTimeout,
+                              c_readTimeout,
+                              c_gzip,
+                              null != c_tokenCache ? c_tokenCache.toPath() : null,
+                              c_metrics );
+    clientFactories.add( clientFactory );
+    return c_metrics.time( "authenticate", () -> {
+      final Keycloak client =
+        clientFactory.create( serverUrl, adminRealm, adminUsername, adminPassword, adminClient, adminPassword );
+      // The admin client authenticates on the first request so authenticate eagerly to time it separately
+      final TokenManager tokenManager = client.tokenManager();
+      if ( null != tokenManager )
       {
-        deleteClient( realm, client.getId(), clientId );
+        c_requestExecutor.execute( "Authenticate", attempt -> tokenManager.getAccessToken() );
       }
-    }
+      return client;
+    } );
   }
 
-  private static void deleteClient( @Nonnull final RealmResource realm,
-                                    @Nonnull final String id,
-                                    @Nonnull final String clientId )
+  /**
+   * Converge the realms of every target concurrently. The templates are loaded once and rendered for each realm
+   * of each target. Each target is authenticated and converged independently so that the failure of one target
+   * does not prevent the other targets from converging. A report of the outcome of every target is written once
+   * every target has completed.
+   *
+   * @return true if every target was successfully converged.
+   */
+  private static boolean convergeTargets( @Nonnull final List<AdminClientFactory> clientFactories,
+                                          @Nonnull final ClientLoader loader,
+                                          @Nonnull final Map<Path, Template> templates )
+    throws InterruptedException
   {
+    final ExecutorService executor = Executors.newFixedThreadPool( c_targets.size() );
     try
     {
-      info( "Deleting client configuration for clientId '" + clientId + "'" );
-      realm.clients().get( id ).remove();
+      final Map<TargetConfig, Future<Boolean>> results = new LinkedHashMap<>();
+      final Map<TargetConfig, Long> durations = new ConcurrentHashMap<>();
+      for ( final TargetConfig target : c_targets )
+      {
+        final List<RealmConfig> realms = new ArrayList<>();
+        for ( final RealmConfig config : c_realms )
+        {
+          if ( target.getName().equals( config.getTarget() ) )
+          {
+            realms.add( config );
+          }
+        }
+        results.put( target, executor.submit( () -> {
+          final long start = System.nanoTime();
+          try
+          {
+            if ( c_verbose )
+            {
+              info( "Converging target " + target.getName() + " at " + target.getServerUrl() );
+            }
+            final Keycloak keycloak = connect( clientFactories,
+                                               target.getServerUrl(),
+                                               target.getAdminRealm(),
+                                               target.getAdminClient(),
+                                               target.getAdminUsername(),
+                                               target.getAdminPassword() );
+            return isTargeted() ?
+                   convergeTargetedRealms( keycloak, loader, templates, realms ) :
+                   convergeRealms( keycloak, loader, templates, realms );
+          }
+          finally
+          {
+            durations.put( target, System.nanoTime() - start );
+          }
+        } ) );
+      }
+      final List<String> report = new ArrayList<>();
+      int failures = 0;
+      for ( final Map.Entry<TargetConfig, Future<Boolean>> entry : results.entrySet() )
+      {
+        final TargetConfig target = entry.getKey();
+        boolean success;
+        try
+        {
+          success = entry.getValue().get();
+        }
+        catch ( final ExecutionException ee )
+        {
+          final Throwable e = ee.getCause();
+          error( "Error converging target " + target.getName() + ". Error: " + e );
+          if ( c_verbose )
+          {
+            e.printStackTrace( System.out );
+          }
+          success = false;
+        }
+        final String outcome;
+        if ( success )
+        {
+          int operations = 0;
+          for ( final RealmConfig config : c_realms )
+          {
+            if ( target.getName().equals( config.getTarget() ) )
+            {
+              operations += c_appliedOperations.getOrDefault( config, 0 );
+            }
+          }
+          outcome = 0 == operations ? "in sync" : "diverged, applied " + operations + " change(s)";
+        }
+        else
+        {
+          failures++;
+          outcome = "failed";
+        }
+        report.add( "\t" + target.getName() + " (" + target.getServerUrl() + "): " + outcome + " in " +
+                    TimeUnit.NANOSECONDS.toMillis( durations.get( target ) ) + "ms" );
+      }
+      info( "Converged " + ( c_targets.size() - failures ) + " of " + c_targets.size() + " target(s):" );
+      report.forEach( Main::info );
+      return 0 == failures;
     }
-    catch ( final Exception e )
+    finally
     {
-      error( "Error deleting client configuration " + clientId );
-      throw e;
+      executor.shutdownNow();
     }
   }
 
-  private static void uploadClients( @Nonnull final RealmResource realm, @Nonnull final Map<String, String> clients )
+  /**
+   * Write the client configurations in the configuration directory to the bundle file.
+   */
+  private static void writeBundle()
+    throws IOException
   {
-    final List<ClientRepresentation> existing = realm.clients().findAll();
-
-    for ( final Map.Entry<String, String> entry : clients.entrySet() )
-    {
-      final String clientID = entry.getKey();
-      final String configuration = entry.getValue();
-
-      final ClientRepresentation client = findExistingClient( existing, clientID );
-      if ( null != client )
-      {
-        updateClient( realm, client, configuration );
-      }
-      else
-      {
-        createClient( realm, clientID, configuration );
-      }
-    }
+    final Path dir = c_dir.toPath();
+    final ClientLoader loader =
+      new ClientLoader( dir, c_includes, c_excludes, getSecretsPaths( dir ), c_templateCache, false );
+    final List<Path> files = loader.listFiles();
+    ClientBundle.write( Objects.requireNonNull( c_bundle ).toPath(), dir, files );
+    info( "Bundled " + files.size() + " client configuration(s) into " + c_bundle.getAbsolutePath() );
   }
 
-  private static void collectClientSecrets( @Nonnull final RealmResource realm,
-                                            @Nonnull final Map<String, String> clients )
+  /**
+   * Return the paths, relative to the configuration directory, of the secrets bundles and secrets directories
+   * that are written within the configuration directory so that secrets are never loaded as client
+   * configurations. A secrets directory that is the configuration directory itself is not excluded as the
+   * secret files within it are named after the clientId of each client.
+   */
+  @Nonnull
+  private static List<Path> getSecretsPaths( @Nonnull final Path dir )
   {
-    final List<ClientRepresentation> existing = realm.clients().findAll();
-    for ( final Map.Entry<String, String> entry : clients.entrySet() )
+    final Path root = dir.toAbsolutePath().normalize();
+    final Set<File> secretsDirs = new LinkedHashSet<>();
+    if ( null != c_secretsDir )
     {
-      final ClientRepresentation client = findExistingClient( existing, entry.getKey() );
-      assert null != client;
-      collectClientSecret( realm, client );
+      secretsDirs.add( c_secretsDir );
     }
-    for ( final String clientID : c_unmanagedClients )
+    c_realms.forEach( realm -> secretsDirs.add( realm.getSecretsDir() ) );
+    final List<Path> paths = new ArrayList<>();
+    for ( final File secretsDir : secretsDirs )
     {
-      final ClientRepresentation client = findExistingClient( existing, clientID );
-      if ( null != client )
+      final Path path = secretsDir.toPath().toAbsolutePath().normalize();
+      final Path secretsPath = null != c_secretsBundle ? path.resolve( c_secretsBundle ).normalize() : path;
+      if ( secretsPath.startsWith( root ) && !secretsPath.equals( root ) )
       {
-        collectClientSecret( realm, client );
+        paths.add( root.relativize( secretsPath ) );
       }
     }
+    return paths;
   }
 
-  private static void collectClientSecret( @Nonnull final RealmResource realm,
-                                           @Nonnull final ClientRepresentation client )
+  /**
+   * Load the plan file and configure the realms to apply from the realms in the plan.
+   *
+   * @return the plan or null if the realms could not be configured.
+   */
+  @Nullable
+  private static ChangePlan loadPlan()
+    throws IOException
   {
-    final Boolean publicClient = client.isPublicClient();
-    if ( null != publicClient && !publicClient )
+    final ChangePlan plan = ChangePlan.load( Objects.requireNonNull( c_planFile ).toPath() );
+    final List<String> plannedRealms = new ArrayList<>();
+    for ( final ChangePlan.RealmPlan realmPlan : plan.getRealms() )
+    {
+      plannedRealms.add( realmPlan.getRealm() );
+    }
+    if ( c_realmNames.isEmpty() )
+    {
+      c_realmNames.addAll( plannedRealms );
+    }
+    else
     {
-      info( "Retrieving client secret for confidential client with clientId '" + client.getClientId() + "'" );
-      final ClientResource clientResource = realm.clients().get( client.getId() );
-      final CredentialRepresentation secret = clientResource.getSecret();
-      if ( null != secret )
+      for ( final String realmName : c_realmNames )
       {
-        final String value = secret.getValue();
-        if ( null != value )
+        if ( !plannedRealms.contains( realmName ) )
         {
-          final Path dir = c_secretsDir.toPath();
-          final Path secretFile = dir.resolve( client.getClientId() );
-          try
-          {
-            if ( !Files.exists( dir ) )
-            {
-              Files.createDirectories( dir );
-            }
-            Files.write( secretFile, value.getBytes( StandardCharsets.US_ASCII ) );
-          }
-          catch ( final IOException ioe )
-          {
-            error( "Error writing keycloak secret for client " + client.getClientId() + " in " +
-                   "the realm " + c_realmName + ". Error: " + ioe );
-            System.exit( ERROR_WRITING_CLIENT_SECRET_CODE );
-          }
+          error( "Realm " + realmName + " is not present in the plan file " + c_planFile.getAbsolutePath() + "." );
+          return null;
         }
       }
     }
+    return buildRealmConfigs() ? plan : null;
   }
 
-  @Nullable
-  private static ClientRepresentation findExistingClient( @Nonnull final List<ClientRepresentation> existing,
-                                                          @Nonnull final String clientID )
+  /**
+   * Converge the realms using a shared admin session by planning and then immediately applying the plan.
+   *
+   * @return true if every realm was successfully converged.
+   */
+  private static boolean convergeRealms( @Nonnull final Keycloak keycloak,
+                                         @Nonnull final ClientLoader loader,
+                                         @Nonnull final Map<Path, Template> templates,
+                                         @Nonnull final List<RealmConfig> realms )
+    throws InterruptedException
   {
-    ClientRepresentation client = null;
-    for ( final ClientRepresentation candidate : existing )
-    {
-      if ( candidate.getClientId().equals( clientID ) )
-      {
-        client = candidate;
-        break;
-      }
-    }
-    return client;
+    return processRealms( "converging", realms, config -> {
+      final RealmResource realm = keycloak.realm( config.getRealmName() );
+      final ClientIndex index = loadClientIndex( realm );
+      final ChangePlan.RealmPlan plan = planRealm( realm, loader, config, templates, index );
+      applyRealmPlan( realm, config, plan, index, null );
+    } );
   }
 
-  private static void updateClient( @Nonnull final RealmResource realm,
-                                    @Nonnull final ClientRepresentation client,
-                                    @Nonnull final String configuration )
+  /**
+   * Return true if only the clients selected by clientId or defined in changed files are converged.
+   */
+  private static boolean isTargeted()
   {
-    info( "Updating client with clientId '" + client.getClientId() + "'" );
-    try
-    {
-      final ClientRepresentation candidate = realm.convertClientDescription( configuration );
-      final ClientResource clientResource = realm.clients().get( client.getId() );
-      clientResource.update( candidate );
-    }
-    catch ( final Exception e )
-    {
-      error( "Error uploading client configuration " + client.getClientId() );
-      throw e;
-    }
+    return !c_targetClients.isEmpty() || !c_changedFiles.isEmpty();
   }
 
-  private static void createClient( @Nonnull final RealmResource realm,
-                                    @Nonnull final String clientID,
-                                    @Nonnull final String configuration )
+  /**
+   * Return the changed files that are client configuration files within the configuration directory.
+   * Changed files that have been deleted are reported as the clients they defined can not be identified.
+   */
+  @Nonnull
+  private static List<Path> selectChangedFiles( @Nonnull final ClientLoader loader )
   {
-    info( "Creating client with clientId '" + clientID + "'" );
-    try
+    final Path dir = c_dir.toPath().toAbsolutePath().normalize();
+    final List<Path> files = new ArrayList<>();
+    for ( final Path file : c_changedFiles )
     {
-      final Response response = realm.clients().create( realm.convertClientDescription( configuration ) );
-      if ( response.getStatus() != Response.Status.CREATED.getStatusCode() )
+      if ( !file.startsWith( dir ) || !loader.isClientConfiguration( dir.relativize( file ) ) )
       {
-        final String message =
-          "Failed to create client '" + clientID + "' due to " +
-          response.getStatusInfo().getStatusCode() + ":" + response.getStatusInfo().getReasonPhrase();
-        throw new IllegalStateException( message );
+        if ( c_verbose )
+        {
+          info( "Ignoring changed file " + file + " as it is not a client configuration file." );
+        }
+      }
+      else if ( !Files.isRegularFile( file ) )
+      {
+        info( "Ignoring changed file " + file + " as it no longer exists. Specify --delete-client to delete " +
+              "the clients that it defined." );
+      }
+      else if ( !files.contains( file ) )
+      {
+        files.add( file );
       }
     }
-    catch ( final Exception e )
-    {
-      error( "Error uploading client configuration " + clientID );
-      throw e;
-    }
+    return files;
+  }
+
+  /**
+   * Converge only the selected clients in every realm. Only the templates of the selected clients are rendered
+   * and the selected clients are looked up individually rather than listing every client in the realm.
+   * Clients not defined by the selected templates are only deleted if they are selected by an exact clientId
+   * and deletion was requested.
+   *
+   * @return true if the selected clients were successfully converged in every realm.
+   */
+  private static boolean convergeTargetedRealms( @Nonnull final Keycloak keycloak,
+                                                 @Nonnull final ClientLoader loader,
+                                                 @Nonnull final Map<Path, Template> templates,
+                                                 @Nonnull final List<RealmConfig> realms )
+    throws InterruptedException
+  {
+    return processRealms( "converging selected clients in", realms, config -> {
+      final RealmResource realm = keycloak.realm( config.getRealmName() );
+      final Map<String, ClientRepresentation> clients = renderSelectedClients( realm, loader, config, templates );
+      final Set<String> targets = getTargetClientIds( clients.keySet() );
+      final ClientIndex index = findClients( realm, targets );
+      applyRealmPlan( realm,
+                      config,
+                      planRealm( config, clients, hashConfigs( clients ), index, targets ),
+                      index,
+                      targets );
+    } );
   }
 
+  /**
+   * Render the clients of the realm that are selected by clientId or defined in changed files.
+   *
+   * @return the selected clients keyed by clientId.
+   */
   @Nonnull
-  private static Map<String, String> buildClientConfigurations()
-    throws Exception
+  private static Map<String, ClientRepresentation> renderSelectedClients( @Nonnull final RealmResource realm,
+                                                                          @Nonnull final ClientLoader loader,
+                                                                          @Nonnull final RealmConfig config,
+                                                                          @Nonnull final Map<Path, Template> templates )
   {
-    final Map<String, String> clientConfigurations = new HashMap<>();
-    final File[] files = c_dir.listFiles();
-    assert null != files;
-    for ( final File file : files )
-    {
-      if ( !file.isDirectory() && file.getName().endsWith( ".json" ) )
+    final Set<Path> changedFiles = new HashSet<>( c_changedFiles );
+    final Map<String, ClientRepresentation> clients = c_metrics.time( "render-clients", () -> {
+      final Map<Path, Template> selected = new LinkedHashMap<>();
+      final Map<Path, Template> unresolved = new LinkedHashMap<>();
+      for ( final Map.Entry<Path, Template> entry : templates.entrySet() )
       {
-        try
+        final String clientId = changedFiles.contains( entry.getKey() ) ? null : renderClientId( entry, config );
+        if ( changedFiles.contains( entry.getKey() ) || ( null != clientId && isTargetClient( clientId ) ) )
         {
-          buildClientConfiguration( clientConfigurations, file );
+          selected.put( entry.getKey(), entry.getValue() );
         }
-        catch ( final Exception e )
+        else if ( null == clientId )
         {
-          error( "Error building client configuration from file " + file );
-          throw e;
+          // The clientId can only be determined by rendering the template
+          unresolved.put( entry.getKey(), entry.getValue() );
         }
       }
+      final Map<Path, ClientRepresentation> clientsByFile =
+        new TreeMap<>( loader.renderClients( config, selected, clientConverter( realm ) ) );
+      loader.renderClients( config, unresolved, clientConverter( realm ) ).forEach( ( file, client ) -> {
+        if ( isTargetClient( client.getClientId() ) )
+        {
+          clientsByFile.put( file, client );
+        }
+      } );
+      return ClientLoader.collectClients( clientsByFile );
+    } );
+    if ( c_verbose )
+    {
+      info( "Selected " + clients.size() + " client(s) in realm " + config.getKey() );
     }
-    return clientConfigurations;
+    return clients;
   }
 
-  private static void buildClientConfiguration( @Nonnull final Map<String, String> clientConfigurations,
-                                                @Nonnull final File file )
-    throws IOException
+  /**
+   * Return the clientIds of the clients that are looked up in the realm when clients are selected. These are
+   * the selected clients, any client selected by an exact clientId and any client that is to be deleted.
+   *
+   * @param clientIds the clientIds of the selected clients.
+   */
+  @Nonnull
+  private static Set<String> getTargetClientIds( @Nonnull final Set<String> clientIds )
   {
-    final String data = loadAndTransformClient( file );
-    final JsonObject clientJson = Json.createReader( new StringReader( data ) ).readObject();
-    final String clientID = clientJson.getString( "clientId" );
-    if ( clientConfigurations.containsKey( clientID ) )
+    final Set<String> targets = new HashSet<>( clientIds );
+    targets.addAll( c_clientsToDelete );
+    for ( final String clientId : c_targetClients )
     {
-      final String message =
-        "Client with clientId '" + clientID + "' defined multiple times in client directory";
-      throw new IllegalStateException( message );
+      if ( -1 == clientId.indexOf( '*' ) && -1 == clientId.indexOf( '?' ) )
+      {
+        targets.add( clientId );
+      }
     }
-    clientConfigurations.put( clientID, data );
+    return targets;
   }
 
   /**
-   * Load the file from file system and process using mustache replacement
+   * Return the clientId of the template or null if it can not be determined without rendering the template.
    */
-  private static String loadAndTransformClient( final File file )
-    throws IOException
+  @Nullable
+  private static String renderClientId( @Nonnull final Map.Entry<Path, Template> entry,
+                                        @Nonnull final RealmConfig config )
   {
-    final byte[] byteData = Files.readAllBytes( file.toPath() );
-    final String data = new String( byteData, StandardCharsets.US_ASCII );
+    try
+    {
+      return entry.getValue().renderClientId( config.getEnvs() );
+    }
+    catch ( final IllegalStateException ise )
+    {
+      // Missing variables are reported when the template is rendered
+      return null;
+    }
+  }
 
-    return replaceUUIDs( replaceVars( data ) );
+  /**
+   * Return true if the clientId matches a clientId selected by --client.
+   */
+  private static boolean isTargetClient( @Nonnull final String clientId )
+  {
+    return c_targetClientPatterns.stream().anyMatch( pattern -> pattern.matcher( clientId ).matches() );
   }
 
   /**
-   * Need to replace UUIDs as the database uses them to uniquely distinguish elements.
+   * Convert a clientId that may contain the wildcards '*' and '?' into a pattern.
    */
   @Nonnull
-  private static String replaceUUIDs( @Nonnull final String data )
+  private static Pattern toClientIdPattern( @Nonnull final String clientId )
   {
-    final Pattern pattern =
-      Pattern.compile( "[A-Fa-f0-9]{8}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{12}" );
-    final Matcher matcher = pattern.matcher( data );
-
-    boolean result = matcher.find();
-    if ( result )
+    final StringBuilder sb = new StringBuilder();
+    int start = 0;
+    for ( int i = 0; i < clientId.length(); i++ )
     {
-      final StringBuffer sb = new StringBuffer();
-      do
+      final char ch = clientId.charAt( i );
+      if ( '*' == ch || '?' == ch )
       {
-        final String replacement = UUID.randomUUID().toString();
-        matcher.appendReplacement( sb, replacement );
-        result = matcher.find();
-      } while ( result );
-      matcher.appendTail( sb );
-
-      return sb.toString();
+        if ( i > start )
+        {
+          sb.append( Pattern.quote( clientId.substring( start, i ) ) );
+        }
+        sb.append( '*' == ch ? ".*" : "." );
+        start = i + 1;
+      }
     }
-    else
+    if ( clientId.length() > start )
     {
-      return data;
+      sb.append( Pattern.quote( clientId.substring( start ) ) );
     }
+    return Pattern.compile( sb.toString() );
   }
 
-  @Nonnull
-  private static String replaceVars( @Nonnull final String data )
+  /**
+   * Compute the plan for every realm and write it to the plan file.
+   * The plan file is only written if every realm was successfully planned.
+   *
+   * @return true if every realm was successfully planned.
+   */
+  private static boolean writePlan( @Nonnull final Keycloak keycloak,
+                                    @Nonnull final ClientLoader loader,
+                                    @Nonnull final Map<Path, Template> templates )
+    throws InterruptedException, IOException
   {
-    final Pattern pattern = Pattern.compile( "\\{\\{([^}].+)}}" );
-    final Matcher matcher = pattern.matcher( data );
-
-    boolean result = matcher.find();
-    if ( result )
+    final Map<String, ChangePlan.RealmPlan> realmPlans = new ConcurrentHashMap<>();
+    final boolean success = processRealms( "planning", config -> {
+      final RealmResource realm = keycloak.realm( config.getRealmName() );
+      final ClientIndex index = loadClientIndex( realm );
+      realmPlans.put( config.getRealmName(), planRealm( realm, loader, config, templates, index ) );
+    } );
+    if ( success )
     {
-      final StringBuffer sb = new StringBuffer();
-      do
+      final ChangePlan plan = new ChangePlan();
+      for ( final RealmConfig config : c_realms )
       {
-        final String var = matcher.group( 1 );
-        final String replacement = c_envs.get( var );
-        if ( null == replacement )
+        final ChangePlan.RealmPlan realmPlan = realmPlans.get( config.getRealmName() );
+        info( "Realm " + config.getRealmName() + ": " + realmPlan.getOperations().size() + " operation(s)" );
+        for ( final ChangePlan.Operation operation : realmPlan.getOperations() )
         {
-          throw new IllegalStateException( "Unable to replace variable '" + var + "'" );
+          info( "\t" + operation );
+          for ( final String change : operation.getChanges() )
+          {
+            info( "\t\t" + change );
+          }
         }
-        matcher.appendReplacement( sb, replacement );
-        result = matcher.find();
-      } while ( result );
-      matcher.appendTail( sb );
-
-      return sb.toString();
-    }
-    else
-    {
-      return data;
+        plan.getRealms().add( realmPlan );
+      }
+      plan.save( Objects.requireNonNull( c_planFile ).toPath() );
+      info( "Plan written to " + c_planFile.getAbsolutePath() );
     }
+    return success;
   }
 
-  private static boolean processOptions( @Nonnull final String[] args )
+  /**
+   * Compare every realm with the client configurations without modifying the realm and report the clients that
+   * have drifted. The clients of each realm are listed once, or looked up concurrently by clientId when clients
+   * are selected. Secrets are not collected and the state file is read but not updated.
+   *
+   * @return the exit code indicating whether every realm is in sync, a client has drifted or a realm could not
+   * be checked.
+   */
+  private static int checkRealms( @Nonnull final Keycloak keycloak,
+                                  @Nonnull final ClientLoader loader,
+                                  @Nonnull final Map<Path, Template> templates )
+    throws InterruptedException
   {
-    // Parse the arguments
-    final CLArgsParser parser = new CLArgsParser( args, OPTIONS );
-
-    //Make sure that there was no errors parsing arguments
-    if ( null != parser.getErrorString() )
-    {
-      error( parser.getErrorString() );
-      return false;
-    }
+    final Map<RealmConfig, List<ChangePlan.Operation>> drift = new ConcurrentHashMap<>();
+    final boolean success = processRealms( "checking", config -> {
+      final RealmResource realm = keycloak.realm( config.getRealmName() );
+      final ChangePlan.RealmPlan plan;
+      if ( isTargeted() )
+      {
+        final Map<String, ClientRepresentation> clients = renderSelectedClients( realm, loader, config, templates );
+        final Set<String> targets = getTargetClientIds( clients.keySet() );
+        plan = planRealm( config, clients, hashConfigs( clients ), findClients( realm, targets ), targets );
+      }
+      else
+      {
+        plan = planRealm( realm, loader, config, templates, loadClientIndex( realm ) );
+      }
+      final List<ChangePlan.Operation> operations = new ArrayList<>();
+      for ( final ChangePlan.Operation operation : plan.getOperations() )
+      {
+        // A missing secret file is not drift of the realm
+        if ( ChangePlan.Type.SECRET != operation.getType() )
+        {
+          operations.add( operation );
+        }
+      }
+      drift.put( config, operations );
+    } );
+    boolean drifted = false;
+    for ( final RealmConfig config : c_realms )
+    {
+      final List<ChangePlan.Operation> operations = drift.get( config );
+      if ( null != operations )
+      {
+        if ( operations.isEmpty() )
+        {
+          info( "Realm " + config.getKey() + ": in sync" );
+        }
+        else
+        {
+          drifted = true;
+          info( "Realm " + config.getKey() + ": " + operations.size() + " client(s) drifted" );
+          for ( final ChangePlan.Operation operation : operations )
+          {
+            info( "\t" + describeDrift( operation ) );
+            if ( c_verbose )
+            {
+              for ( final String change : operation.getChanges() )
+              {
+                info( "\t\t" + change );
+              }
+            }
+          }
+        }
+      }
+    }
+    return !success ? ERROR_CHECKING_EXIT_CODE : drifted ? DRIFT_DETECTED_EXIT_CODE : SUCCESS_EXIT_CODE;
+  }
+
+  /**
+   * Return a single line summary of the drift that the operation would correct.
+   */
+  @Nonnull
+  private static String describeDrift( @Nonnull final ChangePlan.Operation operation )
+  {
+    final String clientId = operation.getClientId();
+    switch ( operation.getType() )
+    {
+      case CREATE:
+        return clientId + ": missing";
+      case DELETE:
+        return clientId + ": not configured";
+      default:
+      {
+        // Changes are of the form "path: actual -> desired" so only the paths are reported
+        final Set<String> paths = new TreeSet<>();
+        for ( final String change : operation.getChanges() )
+        {
+          final int index = change.indexOf( ": " );
+          paths.add( -1 == index ? change : change.substring( 0, index ) );
+        }
+        return clientId + ": differs in " + String.join( ", ", paths );
+      }
+    }
+  }
+
+  /**
+   * Apply a previously computed plan to every realm. A realm is only modified if the clients in
+   * the realm are unchanged since the plan was computed.
+   *
+   * @return true if the plan was successfully applied to every realm.
+   */
+  private static boolean applyPlan( @Nonnull final Keycloak keycloak, @Nonnull final ChangePlan plan )
+    throws InterruptedException
+  {
+    final Map<String, ChangePlan.RealmPlan> realmPlans = new HashMap<>();
+    for ( final ChangePlan.RealmPlan realmPlan : plan.getRealms() )
+    {
+      realmPlans.put( realmPlan.getRealm(), realmPlan );
+    }
+    return processRealms( "applying plan to", config -> {
+      final RealmResource realm = keycloak.realm( config.getRealmName() );
+      final ChangePlan.RealmPlan realmPlan = realmPlans.get( config.getRealmName() );
+      final ClientIndex index = loadClientIndex( realm );
+      if ( !index.fingerprint().equals( realmPlan.getFingerprint() ) )
+      {
+        throw new IllegalStateException( "The clients in realm " + config.getRealmName() + " have changed " +
+                                         "since the plan was computed. The realm must be planned again." );
+      }
+      applyRealmPlan( realm, config, realmPlan, index, null );
+    } );
+  }
+
+  /**
+   * The state of a realm that is retained between convergences while watching the client directory.
+   */
+  private static final class WatchedRealm
+  {
+    @Nonnull
+    private final ClientIndex _index;
+    /**
+     * The desired clients keyed by the file that defines them.
+     */
+    @Nonnull
+    private final Map<Path, ClientRepresentation> _clientsByFile;
+    @Nonnull
+    private final Map<String, String> _configHashes;
+
+    WatchedRealm( @Nonnull final ClientIndex index,
+                  @Nonnull final Map<Path, ClientRepresentation> clientsByFile,
+                  @Nonnull final Map<String, String> configHashes )
+    {
+      _index = index;
+      _clientsByFile = clientsByFile;
+      _configHashes = configHashes;
+    }
+  }
+
+  /**
+   * Converge every realm and then watch the client directory, converging only the clients defined in files
+   * that change. The admin session and the client index of each realm are retained between changes and every
+   * realm is periodically reconciled in full to correct changes made on the server by other tools.
+   *
+   * @return false once the client directory can no longer be watched.
+   */
+  private static boolean watchRealms( @Nonnull final Keycloak keycloak,
+                                      @Nonnull final ClientLoader loader,
+                                      @Nonnull final Map<Path, Template> initialTemplates )
+    throws IOException, InterruptedException
+  {
+    final Path dir = c_dir.toPath();
+    final Map<String, WatchedRealm> realms = new ConcurrentHashMap<>();
+    final Map<Path, Template> templates = new TreeMap<>( initialTemplates );
+    final long reconcileInterval = TimeUnit.SECONDS.toMillis( c_reconcileInterval );
+    // The directory is watched before the realms are converged so that changes made while converging are seen
+    try ( final DirectoryWatcher watcher = new DirectoryWatcher( dir ) )
+    {
+      reconcileRealms( keycloak, loader, templates, realms );
+      saveStateManifest();
+      long nextReconcile = System.currentTimeMillis() + reconcileInterval;
+      info( "Watching " + c_dir.getAbsolutePath() + " for changes" );
+      while ( watcher.isWatching() )
+      {
+        try
+        {
+          final Set<Path> changes =
+            watcher.awaitChanges( Math.max( 1, nextReconcile - System.currentTimeMillis() ), c_debounce );
+          if ( null == changes || System.currentTimeMillis() >= nextReconcile )
+          {
+            if ( null == changes )
+            {
+              info( "Changes to the client directory may have been missed. Reconciling every realm." );
+              // Any file may have been rewritten without changing its size or modification time
+              c_templateCache.clear();
+            }
+            else
+            {
+              changes.forEach( c_templateCache::invalidate );
+            }
+            final Map<Path, Template> loaded = loader.loadTemplates();
+            templates.clear();
+            templates.putAll( loaded );
+            reconcileRealms( keycloak, loader, templates, realms );
+            nextReconcile = System.currentTimeMillis() + reconcileInterval;
+          }
+          else if ( !changes.isEmpty() )
+          {
+            final long start = System.nanoTime();
+            final Set<Path> changedFiles = updateTemplates( loader, dir, templates, changes );
+            if ( !changedFiles.isEmpty() )
+            {
+              convergeChanges( keycloak, loader, templates, changedFiles, realms );
+              info( "Converged changes to " + changedFiles.size() + " file(s) in " +
+                    TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) + "ms" );
+            }
+          }
+          saveStateManifest();
+          writeMetrics( true );
+        }
+        catch ( final IOException | RuntimeException e )
+        {
+          // The failure is reported and the changes are retried when the files next change or the realms are reconciled
+          error( "Error converging changes to client directory. Error: " + e );
+          if ( c_verbose )
+          {
+            e.printStackTrace( System.out );
+          }
+          writeMetrics( false );
+        }
+      }
+    }
+    error( "Configuration directory " + c_dir.getAbsolutePath() + " can no longer be watched." );
+    return false;
+  }
+
+  /**
+   * Update the templates to reflect the changed paths.
+   *
+   * @return the client configuration files that were modified, created or deleted.
+   */
+  @Nonnull
+  private static Set<Path> updateTemplates( @Nonnull final ClientLoader loader,
+                                            @Nonnull final Path dir,
+                                            @Nonnull final Map<Path, Template> templates,
+                                            @Nonnull final Set<Path> changes )
+  {
+    final Set<Path> changedFiles = new TreeSet<>();
+    for ( final Path path : changes )
+    {
+      // A deleted or renamed directory is reported as a single change so include every file within it
+      for ( final Path file : templates.keySet() )
+      {
+        if ( file.startsWith( path ) )
+        {
+          changedFiles.add( file );
+        }
+      }
+      if ( Files.isRegularFile( path ) && loader.isClientConfiguration( dir.relativize( path ) ) )
+      {
+        changedFiles.add( path );
+      }
+    }
+    final List<Path> present = new ArrayList<>();
+    for ( final Path file : changedFiles )
+    {
+      // The file may have been rewritten without changing its size or modification time
+      c_templateCache.invalidate( file );
+      if ( Files.isRegularFile( file ) && loader.isClientConfiguration( dir.relativize( file ) ) )
+      {
+        present.add( file );
+      }
+    }
+    final Map<Path, Template> loaded = loader.loadTemplates( present );
+    templates.keySet().removeAll( changedFiles );
+    templates.putAll( loaded );
+    return changedFiles;
+  }
+
+  /**
+   * Fully converge every realm, recording the state of each realm that is successfully converged.
+   */
+  private static void reconcileRealms( @Nonnull final Keycloak keycloak,
+                                       @Nonnull final ClientLoader loader,
+                                       @Nonnull final Map<Path, Template> templates,
+                                       @Nonnull final Map<String, WatchedRealm> realms )
+    throws InterruptedException
+  {
+    realms.clear();
+    processRealms( "reconciling", config -> {
+      final RealmResource realm = keycloak.realm( config.getRealmName() );
+      realms.put( config.getRealmName(), reconcileRealm( realm, loader, config, templates ) );
+    } );
+  }
+
+  @Nonnull
+  private static WatchedRealm reconcileRealm( @Nonnull final RealmResource realm,
+                                              @Nonnull final ClientLoader loader,
+                                              @Nonnull final RealmConfig config,
+                                              @Nonnull final Map<Path, Template> templates )
+    throws InterruptedException, IOException
+  {
+    final ClientIndex index = loadClientIndex( realm );
+    final Map<Path, ClientRepresentation> clientsByFile =
+      new TreeMap<>( c_metrics.time( "render-clients",
+                                     () -> loader.renderClients( config, templates, clientConverter( realm ) ) ) );
+    final Map<String, ClientRepresentation> clients = ClientLoader.collectClients( clientsByFile );
+    final Map<String, String> configHashes = hashConfigs( clients );
+    applyRealmPlan( realm, config, planRealm( config, clients, configHashes, index, null ), index, null );
+    return new WatchedRealm( index, clientsByFile, configHashes );
+  }
+
+  /**
+   * Converge the clients defined in the changed files in every realm.
+   * A realm that has no recorded state, because it has not yet been successfully converged, is reconciled in full.
+   */
+  private static void convergeChanges( @Nonnull final Keycloak keycloak,
+                                       @Nonnull final ClientLoader loader,
+                                       @Nonnull final Map<Path, Template> templates,
+                                       @Nonnull final Set<Path> changedFiles,
+                                       @Nonnull final Map<String, WatchedRealm> realms )
+    throws InterruptedException
+  {
+    processRealms( "converging changes to", config -> {
+      final String realmName = config.getRealmName();
+      final RealmResource realm = keycloak.realm( realmName );
+      // The state is removed while converging so that a failure causes the realm to be reconciled in full
+      final WatchedRealm state = realms.remove( realmName );
+      if ( null == state )
+      {
+        realms.put( realmName, reconcileRealm( realm, loader, config, templates ) );
+        return;
+      }
+      final Set<String> changed = new HashSet<>();
+      final Map<Path, Template> changedTemplates = new LinkedHashMap<>();
+      for ( final Path file : changedFiles )
+      {
+        final ClientRepresentation previous = state._clientsByFile.remove( file );
+        if ( null != previous )
+        {
+          changed.add( previous.getClientId() );
+        }
+        final Template template = templates.get( file );
+        if ( null != template )
+        {
+          changedTemplates.put( file, template );
+        }
+      }
+      final Map<Path, ClientRepresentation> rendered =
+        c_metrics.time( "render-clients",
+                        () -> loader.renderClients( config, changedTemplates, clientConverter( realm ) ) );
+      rendered.values().forEach( client -> changed.add( client.getClientId() ) );
+      state._clientsByFile.putAll( rendered );
+
+      final Map<String, ClientRepresentation> clients = ClientLoader.collectClients( state._clientsByFile );
+      for ( final String clientID : changed )
+      {
+        final ClientRepresentation client = clients.get( clientID );
+        if ( null != client )
+        {
+          state._configHashes.put( clientID, StateManifest.hashConfig( client ) );
+        }
+        else
+        {
+          state._configHashes.remove( clientID );
+        }
+      }
+      applyRealmPlan( realm,
+                      config,
+                      planRealm( config, clients, state._configHashes, state._index, changed ),
+                      state._index,
+                      null );
+      realms.put( realmName, state );
+    } );
+  }
+
+  private static void saveStateManifest()
+    throws IOException
+  {
+    if ( null != c_stateManifest )
+    {
+      final StateManifest stateManifest = c_stateManifest;
+      c_metrics.time( "save-state", () -> {
+        stateManifest.save( Objects.requireNonNull( c_stateFile ).toPath() );
+        return null;
+      } );
+    }
+  }
+
+  /**
+   * Write the metrics files if specified. Metrics are cumulative so the watch command rewrites the files with
+   * the metrics of every convergence since it started. A failure to write the metrics is reported but does not
+   * cause the run to fail.
+   *
+   * @param success true if the run succeeded.
+   */
+  private static void writeMetrics( final boolean success )
+  {
+    try
+    {
+      if ( null != c_metricsFile )
+      {
+        c_metrics.writeJson( c_metricsFile.toPath(), c_command, success );
+      }
+      if ( null != c_prometheusFile )
+      {
+        c_metrics.writePrometheus( c_prometheusFile.toPath(), c_command, success );
+      }
+    }
+    catch ( final IOException ioe )
+    {
+      error( "Error writing metrics. Error: " + ioe );
+    }
+  }
+
+  /**
+   * An action performed against a single realm.
+   */
+  @FunctionalInterface
+  private interface RealmAction
+  {
+    void run( @Nonnull RealmConfig config )
+      throws Exception;
+  }
+
+  /**
+   * Perform an action on every realm.
+   *
+   * @return true if every realm was successfully processed.
+   */
+  private static boolean processRealms( @Nonnull final String activity, @Nonnull final RealmAction action )
+    throws InterruptedException
+  {
+    return processRealms( activity, c_realms, action );
+  }
+
+  /**
+   * Perform an action on the specified realms. The realms are processed concurrently and the failure to process
+   * one realm does not prevent the processing of the other realms.
+   *
+   * @return true if every realm was successfully processed.
+   */
+  private static boolean processRealms( @Nonnull final String activity,
+                                        @Nonnull final List<RealmConfig> realms,
+                                        @Nonnull final RealmAction action )
+    throws InterruptedException
+  {
+    final ExecutorService executor =
+      Executors.newFixedThreadPool( Math.max( 1, Math.min( c_realmConcurrency, realms.size() ) ) );
+    try
+    {
+      final Map<RealmConfig, Future<?>> results = new LinkedHashMap<>();
+      for ( final RealmConfig config : realms )
+      {
+        results.put( config, executor.submit( () -> {
+          if ( c_verbose )
+          {
+            info( Character.toUpperCase( activity.charAt( 0 ) ) + activity.substring( 1 ) +
+                  " realm " + config.getKey() );
+          }
+          action.run( config );
+          return null;
+        } ) );
+      }
+      boolean success = true;
+      for ( final Map.Entry<RealmConfig, Future<?>> entry : results.entrySet() )
+      {
+        try
+        {
+          entry.getValue().get();
+        }
+        catch ( final ExecutionException ee )
+        {
+          if ( null != c_stateManifest )
+          {
+            // The realm is in an unknown state so make sure that every client is converged on the next run
+            c_stateManifest.removeRealm( entry.getKey().getKey() );
+          }
+          final Throwable e = ee.getCause();
+          error( "Error " + activity + " keycloak realm " + entry.getKey().getKey() + ". Error: " + e );
+          if ( c_verbose )
+          {
+            e.printStackTrace( System.out );
+          }
+          success = false;
+        }
+      }
+      return success;
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Compute the create, update, delete and secret collection operations required to converge the realm.
+   */
+  @Nonnull
+  private static ChangePlan.RealmPlan planRealm( @Nonnull final RealmResource realm,
+                                                 @Nonnull final ClientLoader loader,
+                                                 @Nonnull final RealmConfig config,
+                                                 @Nonnull final Map<Path, Template> templates,
+                                                 @Nonnull final ClientIndex index )
+    throws IOException
+  {
+    final Map<String, ClientRepresentation> clients =
+      c_metrics.time( "render-clients", () -> loader.buildClients( config, templates, clientConverter( realm ) ) );
+    return planRealm( config, clients, hashConfigs( clients ), index, null );
+  }
+
+  /**
+   * Compute the operations required to converge the specified clients.
+   *
+   * @param clients      the desired clients keyed by clientId.
+   * @param configHashes the hash of the desired configuration of every client keyed by clientId.
+   * @param changed      the clientIds of the clients that may have changed or null if any client may have changed.
+   */
+  @Nonnull
+  private static ChangePlan.RealmPlan planRealm( @Nonnull final RealmConfig config,
+                                                 @Nonnull final Map<String, ClientRepresentation> clients,
+                                                 @Nonnull final Map<String, String> configHashes,
+                                                 @Nonnull final ClientIndex index,
+                                                 @Nullable final Set<String> changed )
+    throws IOException
+  {
+    final Predicate<String> shouldDelete =
+      clientId -> ( null == changed || changed.contains( clientId ) ) &&
+                  ( c_clientsToDelete.contains( clientId ) ||
+                    ( c_deleteUnmatchedClients &&
+                      !clients.containsKey( clientId ) &&
+                      !c_unmanagedClients.contains( clientId ) ) );
+
+    final Set<String> unchanged = new HashSet<>();
+    if ( null != c_stateManifest )
+    {
+      unchanged.addAll( findUnchangedClients( c_stateManifest.getRealm( config.getKey() ),
+                                              newSecretStore( config ),
+                                              index,
+                                              configHashes ) );
+    }
+    if ( null != changed )
+    {
+      for ( final String clientID : clients.keySet() )
+      {
+        if ( !changed.contains( clientID ) )
+        {
+          unchanged.add( clientID );
+        }
+      }
+      unchanged.addAll( c_unmanagedClients );
+    }
+
+    final List<ChangePlan.Operation> operations = new ArrayList<>();
+    planUploads( operations, index, clients, unchanged );
+    planDeletes( operations, index, shouldDelete );
+    planSecretCollection( operations, index, clients, shouldDelete, unchanged );
+    return new ChangePlan.RealmPlan( config.getRealmName(), index.fingerprint(), configHashes, operations );
+  }
+
+  @Nonnull
+  private static Function<String, ClientRepresentation> clientConverter( @Nonnull final RealmResource realm )
+  {
+    return description -> c_requestExecutor.execute( "Convert client description",
+                                                     attempt -> realm.convertClientDescription( description ) );
+  }
+
+  @Nonnull
+  private static Map<String, String> hashConfigs( @Nonnull final Map<String, ClientRepresentation> clients )
+  {
+    final Map<String, String> configHashes = new HashMap<>();
+    clients.forEach( ( clientId, client ) -> configHashes.put( clientId, StateManifest.hashConfig( client ) ) );
+    return configHashes;
+  }
+
+  /**
+   * Execute the planned operations for the realm using the configured concurrency.
+   *
+   * @param targets the clientIds of the clients that were converged and that the index was restricted to or
+   *                null if every client in the realm was converged.
+   */
+  private static void applyRealmPlan( @Nonnull final RealmResource realm,
+                                      @Nonnull final RealmConfig config,
+                                      @Nonnull final ChangePlan.RealmPlan plan,
+                                      @Nonnull final ClientIndex index,
+                                      @Nullable final Set<String> targets )
+    throws InterruptedException, IOException
+  {
+    final SecretStore secretStore = newSecretStore( config );
+    final OperationScheduler scheduler = new OperationScheduler( c_concurrency );
+    final AtomicInteger applied = new AtomicInteger();
+    final List<ChangePlan.Operation> operations =
+      c_bulk ?
+      c_metrics.time( "bulk-import", () -> bulkCreateClients( realm, index, plan.getOperations(), applied ) ) :
+      plan.getOperations();
+    for ( final ChangePlan.Operation operation : operations )
+    {
+      scheduler.add( operation.getKey(),
+                     operation.getClientId(),
+                     operation.getType().getDescription(),
+                     operation.getDependencies(),
+                     () -> {
+                       // Operations are timed in a phase named after their type, i.e. "create" or "collect-secret"
+                       final long start = System.nanoTime();
+                       try
+                       {
+                         performOperation( realm, config, index, secretStore, operation );
+                         if ( ChangePlan.Type.SECRET != operation.getType() )
+                         {
+                           applied.incrementAndGet();
+                         }
+                       }
+                       finally
+                       {
+                         c_metrics.recordPhase( operation.getType().getDescription().toLowerCase().replace( ' ', '-' ),
+                                                System.nanoTime() - start );
+                       }
+                     } );
+    }
+    scheduler.run();
+    c_appliedOperations.merge( config, applied.get(), Integer::sum );
+    c_metrics.time( "write-secrets", () -> {
+      writeSecretsBundle( config, index, secretStore, targets );
+      return null;
+    } );
+
+    if ( null != c_stateManifest )
+    {
+      final Map<String, StateManifest.Entry> entries = buildStateEntries( index, plan.getConfigHashes() );
+      if ( null == targets )
+      {
+        c_stateManifest.setRealm( config.getKey(), entries );
+      }
+      else
+      {
+        c_stateManifest.updateClients( config.getKey(), targets, entries );
+      }
+    }
+  }
+
+  /**
+   * Create clients in batches using the partial import endpoint of the realm rather than a request per client.
+   * Clients are imported with the skip policy so that existing clients are never replaced, and a client is only
+   * imported once every client it depends upon has been imported. The clients that were not imported, because
+   * the endpoint rejected the batch or the client already existed, are left to the per-client operations.
+   *
+   * @param importedCount the counter incremented for each client that is imported.
+   * @return the operations that remain to be performed per-client.
+   */
+  @Nonnull
+  private static List<ChangePlan.Operation> bulkCreateClients( @Nonnull final RealmResource realm,
+                                                               @Nonnull final ClientIndex index,
+                                                               @Nonnull final List<ChangePlan.Operation> operations,
+                                                               @Nonnull final AtomicInteger importedCount )
+  {
+    final Map<String, ChangePlan.Operation> pending = new LinkedHashMap<>();
+    for ( final ChangePlan.Operation operation : operations )
+    {
+      if ( ChangePlan.Type.CREATE == operation.getType() )
+      {
+        pending.put( operation.getKey(), operation );
+      }
+    }
+    // A single client is created directly as the import and the subsequent listing of the realm cost more
+    if ( pending.size() < 2 )
+    {
+      return operations;
+    }
+
+    final Set<String> imported = new HashSet<>();
+    final Set<String> attempted = new HashSet<>();
+    boolean progressed = true;
+    while ( progressed && !pending.isEmpty() )
+    {
+      final List<ChangePlan.Operation> ready = new ArrayList<>();
+      for ( final ChangePlan.Operation operation : pending.values() )
+      {
+        if ( operation.getDependencies().stream().noneMatch( pending::containsKey ) &&
+             operation.getDependencies().stream().allMatch( key -> imported.contains( key ) || !attempted.contains( key ) ) )
+        {
+          ready.add( operation );
+        }
+      }
+      ready.forEach( operation -> pending.remove( operation.getKey() ) );
+      for ( int i = 0; i < ready.size(); i += c_bulkBatchSize )
+      {
+        final List<ChangePlan.Operation> batch = ready.subList( i, Math.min( ready.size(), i + c_bulkBatchSize ) );
+        batch.forEach( operation -> attempted.add( operation.getKey() ) );
+        for ( final String clientID : importClients( realm, batch ) )
+        {
+          imported.add( ChangePlan.Type.CREATE.keyFor( clientID ) );
+        }
+      }
+      progressed = !ready.isEmpty();
+    }
+    if ( attempted.isEmpty() )
+    {
+      return operations;
+    }
+
+    // The server representation of the imported clients is only available by listing the realm
+    final ClientIndex current = loadClientIndex( realm );
+    final List<ChangePlan.Operation> remaining = new ArrayList<>();
+    for ( final ChangePlan.Operation operation : operations )
+    {
+      final String key = operation.getKey();
+      if ( ChangePlan.Type.CREATE != operation.getType() || !attempted.contains( key ) )
+      {
+        remaining.add( operation );
+        continue;
+      }
+      final String clientID = operation.getClientId();
+      final ClientRepresentation client = current.findByClientId( clientID );
+      if ( null == client )
+      {
+        info( "Client with clientId '" + clientID + "' was not imported and will be created individually" );
+        remaining.add( operation );
+        continue;
+      }
+      index.put( client );
+      if ( imported.contains( key ) )
+      {
+        importedCount.incrementAndGet();
+      }
+      else
+      {
+        // The import skipped the client because it already existed so update the client if required
+        final List<String> changes = new ArrayList<>();
+        final ClientRepresentation candidate = Objects.requireNonNull( operation.getClient() );
+        for ( final ClientDiff.Change change : ClientDiff.diff( candidate, client ) )
+        {
+          changes.add( change.toString() );
+        }
+        if ( !changes.isEmpty() )
+        {
+          remaining.add( new ChangePlan.Operation( ChangePlan.Type.UPDATE,
+                                                   clientID,
+                                                   client.getId(),
+                                                   candidate,
+                                                   changes,
+                                                   operation.getDependencies() ) );
+        }
+      }
+    }
+    return remaining;
+  }
+
+  /**
+   * Import a batch of clients using the partial import endpoint.
+   *
+   * @return the clientIds of the clients that were added by the import.
+   */
+  @Nonnull
+  private static Set<String> importClients( @Nonnull final RealmResource realm,
+                                            @Nonnull final List<ChangePlan.Operation> batch )
+  {
+    final PartialImportRepresentation representation = new PartialImportRepresentation();
+    representation.setIfResourceExists( PartialImportRepresentation.Policy.SKIP.name() );
+    final List<ClientRepresentation> clients = new ArrayList<>();
+    for ( final ChangePlan.Operation operation : batch )
+    {
+      clients.add( Objects.requireNonNull( operation.getClient() ) );
+    }
+    representation.setClients( clients );
+    info( "Importing " + clients.size() + " client(s)" );
+    try
+    {
+      final JsonNode results = c_requestExecutor.execute( "Import " + clients.size() + " client(s)", attempt -> {
+        final Response response = realm.partialImport( representation );
+        try
+        {
+          final int status = response.getStatus();
+          if ( status != Response.Status.OK.getStatusCode() )
+          {
+            final String message =
+              "Failed to import clients due to " +
+              response.getStatusInfo().getStatusCode() + ":" + response.getStatusInfo().getReasonPhrase();
+            if ( 429 == status || status >= 500 )
+            {
+              throw new WebApplicationException( message, status );
+            }
+            throw new IllegalStateException( message );
+          }
+          return JsonSerialization.mapper.readTree( response.readEntity( String.class ) );
+        }
+        catch ( final IOException ioe )
+        {
+          throw new IllegalStateException( "Unable to parse the result of importing clients", ioe );
+        }
+        finally
+        {
+          response.close();
+        }
+      } );
+      final Set<String> added = new HashSet<>();
+      for ( final JsonNode result : results.path( "results" ) )
+      {
+        final String clientID = result.path( "resourceName" ).asText();
+        final String action = result.path( "action" ).asText();
+        if ( "CLIENT".equals( result.path( "resourceType" ).asText() ) )
+        {
+          if ( "ADDED".equals( action ) )
+          {
+            info( "Created client with clientId '" + clientID + "'" );
+            added.add( clientID );
+          }
+          else if ( c_verbose )
+          {
+            info( "Import of client with clientId '" + clientID + "' resulted in " + action );
+          }
+        }
+      }
+      return added;
+    }
+    catch ( final RuntimeException e )
+    {
+      // The clients in the batch fall back to being created individually
+      info( "Bulk import of " + clients.size() + " client(s) failed. Error: " + e );
+      return Collections.emptySet();
+    }
+  }
+
+  private static void performOperation( @Nonnull final RealmResource realm,
+                                        @Nonnull final RealmConfig config,
+                                        @Nonnull final ClientIndex index,
+                                        @Nonnull final SecretStore secretStore,
+                                        @Nonnull final ChangePlan.Operation operation )
+  {
+    final String clientID = operation.getClientId();
+    switch ( operation.getType() )
+    {
+      case CREATE:
+        createClient( realm, index, Objects.requireNonNull( operation.getClient() ) );
+        break;
+      case UPDATE:
+        updateClient( realm,
+                      index,
+                      Objects.requireNonNull( operation.getId() ),
+                      Objects.requireNonNull( operation.getClient() ),
+                      operation.getChanges() );
+        break;
+      case DELETE:
+        deleteClient( realm, index, Objects.requireNonNull( operation.getId() ), clientID );
+        break;
+      default:
+        final ClientRepresentation client = index.findByClientId( clientID );
+        if ( null == client )
+        {
+          throw new IllegalStateException( "Client with clientId '" + clientID + "' is not present in realm" );
+        }
+        collectClientSecret( realm, config, secretStore, client );
+        break;
+    }
+  }
+
+  /**
+   * Return the clientIds of the clients that have not changed in the client directory or on the server since
+   * they were recorded in the state manifest and thus need not be converged.
+   */
+  @Nonnull
+  private static Set<String> findUnchangedClients( @Nonnull final Map<String, StateManifest.Entry> entries,
+                                                   @Nonnull final SecretStore secretStore,
+                                                   @Nonnull final ClientIndex index,
+                                                   @Nonnull final Map<String, String> configHashes )
+    throws IOException
+  {
+    final Set<String> unchanged = new HashSet<>();
+    for ( final Map.Entry<String, StateManifest.Entry> entry : entries.entrySet() )
+    {
+      final String clientID = entry.getKey();
+      final StateManifest.Entry state = entry.getValue();
+      final ClientRepresentation client = index.findByClientId( clientID );
+      if ( null != client &&
+           Objects.equals( state.getConfigHash(), configHashes.get( clientID ) ) &&
+           state.getServerHash().equals( StateManifest.hashServer( client ) ) &&
+           ( Boolean.TRUE.equals( client.isPublicClient() ) ||
+             secretStore.contains( clientID ) ) )
+      {
+        if ( c_verbose )
+        {
+          info( "Client with clientId '" + clientID + "' is unchanged since the last run" );
+        }
+        unchanged.add( clientID );
+      }
+    }
+    return unchanged;
+  }
+
+  /**
+   * Build the state manifest entries for the managed and unmanaged clients present in the realm.
+   */
+  @Nonnull
+  private static Map<String, StateManifest.Entry> buildStateEntries( @Nonnull final ClientIndex index,
+                                                                     @Nonnull final Map<String, String> configHashes )
+  {
+    final Map<String, StateManifest.Entry> entries = new HashMap<>();
+    for ( final ClientRepresentation client : index.getClients() )
+    {
+      final String clientID = client.getClientId();
+      final String configHash = configHashes.get( clientID );
+      if ( null != configHash || c_unmanagedClients.contains( clientID ) )
+      {
+        entries.put( clientID, new StateManifest.Entry( configHash, StateManifest.hashServer( client ) ) );
+      }
+    }
+    return entries;
+  }
+
+  private static void planDeletes( @Nonnull final List<ChangePlan.Operation> operations,
+                                   @Nonnull final ClientIndex index,
+                                   @Nonnull final Predicate<String> shouldDelete )
+  {
+    for ( final ClientRepresentation client : index.getClients() )
+    {
+      final String clientId = client.getClientId();
+      if ( shouldDelete.test( clientId ) )
+      {
+        // If the client is also present in the client directory then the delete occurs after the upload
+        operations.add( new ChangePlan.Operation( ChangePlan.Type.DELETE,
+                                                  clientId,
+                                                  client.getId(),
+                                                  null,
+                                                  Collections.emptyList(),
+                                                  Collections.singletonList( ChangePlan.Type.CREATE.keyFor( clientId ) ) ) );
+      }
+    }
+  }
+
+  private static void deleteClient( @Nonnull final RealmResource realm,
+                                    @Nonnull final ClientIndex index,
+                                    @Nonnull final String id,
+                                    @Nonnull final String clientId )
+  {
+    try
+    {
+      info( "Deleting client configuration for clientId '" + clientId + "'" );
+      c_requestExecutor.execute( "Delete client '" + clientId + "'", attempt -> {
+        try
+        {
+          realm.clients().get( id ).remove();
+        }
+        catch ( final NotFoundException nfe )
+        {
+          // A failed earlier attempt may have deleted the client
+          if ( 1 == attempt )
+          {
+            throw nfe;
+          }
+        }
+        return null;
+      } );
+      index.remove( id );
+    }
+    catch ( final Exception e )
+    {
+      error( "Error deleting client configuration " + clientId );
+      throw e;
+    }
+  }
+
+  private static void planUploads( @Nonnull final List<ChangePlan.Operation> operations,
+                                   @Nonnull final ClientIndex index,
+                                   @Nonnull final Map<String, ClientRepresentation> clients,
+                                   @Nonnull final Set<String> unchanged )
+  {
+    final Map<String, Set<String>> graph = new HashMap<>();
+    for ( final Map.Entry<String, ClientRepresentation> entry : clients.entrySet() )
+    {
+      graph.put( entry.getKey(), ClientDependencies.extract( entry.getValue() ) );
+    }
+    final Map<String, Set<String>> clientDependencies = ClientDependencies.removeCycles( graph );
+
+    for ( final Map.Entry<String, ClientRepresentation> entry : clients.entrySet() )
+    {
+      final String clientID = entry.getKey();
+      final ClientRepresentation candidate = entry.getValue();
+      if ( unchanged.contains( clientID ) )
+      {
+        continue;
+      }
+
+      final List<String> dependencies = new ArrayList<>();
+      for ( final String dependency : clientDependencies.get( clientID ) )
+      {
+        dependencies.add( ChangePlan.Type.CREATE.keyFor( dependency ) );
+      }
+
+      final ClientRepresentation client = index.findByClientId( clientID );
+      if ( null != client )
+      {
+        final List<String> changes = new ArrayList<>();
+        for ( final ClientDiff.Change change : ClientDiff.diff( candidate, client ) )
+        {
+          changes.add( change.toString() );
+        }
+        if ( changes.isEmpty() )
+        {
+          if ( c_verbose )
+          {
+            info( "Client with clientId '" + clientID + "' is up to date" );
+          }
+        }
+        else
+        {
+          operations.add( new ChangePlan.Operation( ChangePlan.Type.UPDATE,
+                                                    clientID,
+                                                    client.getId(),
+                                                    candidate,
+                                                    changes,
+                                                    dependencies ) );
+        }
+      }
+      else
+      {
+        operations.add( new ChangePlan.Operation( ChangePlan.Type.CREATE,
+                                                  clientID,
+                                                  null,
+                                                  candidate,
+                                                  Collections.emptyList(),
+                                                  dependencies ) );
+      }
+    }
+  }
+
+  private static void planSecretCollection( @Nonnull final List<ChangePlan.Operation> operations,
+                                            @Nonnull final ClientIndex index,
+                                            @Nonnull final Map<String, ClientRepresentation> clients,
+                                            @Nonnull final Predicate<String> shouldDelete,
+                                            @Nonnull final Set<String> unchanged )
+  {
+    final Set<String> planned = new HashSet<>();
+    for ( final Map.Entry<String, ClientRepresentation> entry : clients.entrySet() )
+    {
+      final String clientID = entry.getKey();
+      // Public clients have no secret so collection is only planned for confidential clients
+      if ( !shouldDelete.test( clientID ) && !unchanged.contains( clientID ) && !isPublicClient( entry.getValue() ) )
+      {
+        planned.add( clientID );
+        operations.add( new ChangePlan.Operation( ChangePlan.Type.SECRET,
+                                                  clientID,
+                                                  null,
+                                                  null,
+                                                  Collections.emptyList(),
+                                                  Collections.singletonList( ChangePlan.Type.CREATE.keyFor( clientID ) ) ) );
+      }
+    }
+    for ( final String clientID : c_unmanagedClients )
+    {
+      final ClientRepresentation client = index.findByClientId( clientID );
+      if ( null != client &&
+           !isPublicClient( client ) &&
+           !shouldDelete.test( clientID ) &&
+           !unchanged.contains( clientID ) &&
+           !clients.containsKey( clientID ) &&
+           planned.add( clientID ) )
+      {
+        operations.add( new ChangePlan.Operation( ChangePlan.Type.SECRET,
+                                                  clientID,
+                                                  client.getId(),
+                                                  null,
+                                                  Collections.emptyList(),
+                                                  Collections.emptyList() ) );
+      }
+    }
+  }
+
+  @Nonnull
+  private static ClientIndex loadClientIndex( @Nonnull final RealmResource realm )
+  {
+    return c_metrics.time( "list-clients",
+                           () -> c_requestExecutor.execute( "List clients", attempt -> ClientIndex.load( realm ) ) );
+  }
+
+  /**
+   * Return an index containing the clients in the realm with the specified clientIds.
+   * Each client is looked up by clientId so the cost is proportional to the number of clients rather than the
+   * number of clients in the realm. Up to the configured concurrency of lookups are performed concurrently.
+   */
+  @Nonnull
+  private static ClientIndex findClients( @Nonnull final RealmResource realm, @Nonnull final Set<String> clientIds )
+    throws InterruptedException
+  {
+    return c_metrics.time( "find-clients", () -> {
+      final ExecutorService executor =
+        Executors.newFixedThreadPool( Math.max( 1, Math.min( c_concurrency, clientIds.size() ) ) );
+      try
+      {
+        final Map<String, Future<List<ClientRepresentation>>> results = new LinkedHashMap<>();
+        for ( final String clientId : clientIds )
+        {
+          results.put( clientId,
+                       executor.submit( () -> c_requestExecutor.execute( "Find client '" + clientId + "'",
+                                                                         attempt -> realm
+                                                                           .clients()
+                                                                           .findByClientId( clientId ) ) ) );
+        }
+        final List<ClientRepresentation> clients = new ArrayList<>();
+        for ( final Map.Entry<String, Future<List<ClientRepresentation>>> entry : results.entrySet() )
+        {
+          final List<ClientRepresentation> found;
+          try
+          {
+            found = entry.getValue().get();
+          }
+          catch ( final ExecutionException ee )
+          {
+            final Throwable cause = ee.getCause();
+            throw cause instanceof RuntimeException ?
+                  (RuntimeException) cause :
+                  new IllegalStateException( "Error finding client '" + entry.getKey() + "'", cause );
+          }
+          // Older servers match clientIds by prefix so only retain an exact match
+          for ( final ClientRepresentation client : found )
+          {
+            if ( entry.getKey().equals( client.getClientId() ) )
+            {
+              clients.add( client );
+            }
+          }
+        }
+        return new ClientIndex( clients );
+      }
+      finally
+      {
+        executor.shutdownNow();
+      }
+    } );
+  }
+
+  @Nonnull
+  private static SecretStore newSecretStore( @Nonnull final RealmConfig config )
+  {
+    return new SecretStore( config.getSecretsDir().toPath(), c_secretsBundle );
+  }
+
+  /**
+   * Collect the secret of a confidential client. The secret is taken from the client listing when the server
+   * includes it and is otherwise retrieved from the server.
+   */
+  private static void collectClientSecret( @Nonnull final RealmResource realm,
+                                           @Nonnull final RealmConfig config,
+                                           @Nonnull final SecretStore secretStore,
+                                           @Nonnull final ClientRepresentation client )
+  {
+    if ( !isPublicClient( client ) )
+    {
+      String value = client.getSecret();
+      if ( null == value )
+      {
+        info( "Retrieving client secret for confidential client with clientId '" + client.getClientId() + "'" );
+        final ClientResource clientResource = realm.clients().get( client.getId() );
+        final CredentialRepresentation secret =
+          c_requestExecutor.execute( "Retrieve secret of client '" + client.getClientId() + "'",
+                                     attempt -> clientResource.getSecret() );
+        value = null != secret ? secret.getValue() : null;
+      }
+      if ( null != value )
+      {
+        try
+        {
+          if ( secretStore.put( client.getClientId(), value ) && c_verbose )
+          {
+            info( "Saved changed client secret for confidential client with clientId '" +
+                  client.getClientId() + "'" );
+          }
+        }
+        catch ( final IOException ioe )
+        {
+          c_secretWriteFailed = true;
+          throw new UncheckedIOException( "Error writing keycloak secret for client " + client.getClientId() +
+                                          " in the realm " + config.getKey(), ioe );
+        }
+      }
+    }
+  }
+
+  /**
+   * Return true if the client is a public client and thus has no secret.
+   * A client created without specifying publicClient defaults to a confidential client.
+   */
+  private static boolean isPublicClient( @Nonnull final ClientRepresentation client )
+  {
+    return Boolean.TRUE.equals( client.isPublicClient() );
+  }
+
+  /**
+   * Write the secrets bundle, removing the secrets of clients that are no longer present in the realm.
+   *
+   * @param targets the clientIds that the index was restricted to or null if the index contains every client.
+   */
+  private static void writeSecretsBundle( @Nonnull final RealmConfig config,
+                                          @Nonnull final ClientIndex index,
+                                          @Nonnull final SecretStore secretStore,
+                                          @Nullable final Set<String> targets )
+  {
+    final Set<String> clientIds = new HashSet<>();
+    for ( final ClientRepresentation client : index.getClients() )
+    {
+      clientIds.add( client.getClientId() );
+    }
+    try
+    {
+      // The presence of clients that were not looked up is unknown so their secrets are retained
+      secretStore.flush( null == targets ?
+                         clientIds::contains :
+                         clientId -> !targets.contains( clientId ) || clientIds.contains( clientId ) );
+    }
+    catch ( final IOException ioe )
+    {
+      c_secretWriteFailed = true;
+      throw new UncheckedIOException( "Error writing keycloak secrets bundle in the realm " + config.getKey(), ioe );
+    }
+  }
+
+  /**
+   * Update the client and record the updated client in the index.
+   */
+  private static void updateClient( @Nonnull final RealmResource realm,
+                                    @Nonnull final ClientIndex index,
+                                    @Nonnull final String id,
+                                    @Nonnull final ClientRepresentation candidate,
+                                    @Nonnull final List<String> changes )
+  {
+    final String clientID = candidate.getClientId();
+    try
+    {
+      final ClientRepresentation client = index.findById( id );
+      if ( null == client )
+      {
+        throw new IllegalStateException( "Client with clientId '" + clientID + "' is not present in realm" );
+      }
+      info( "Updating client with clientId '" + clientID + "'" );
+      if ( c_verbose )
+      {
+        for ( final String change : changes )
+        {
+          info( "\t" + change );
+        }
+      }
+      final ClientResource clientResource = realm.clients().get( id );
+      final ClientRepresentation update;
+      if ( isProtocolMapperUpdate( candidate, client ) )
+      {
+        // Replacing the client rewrites every mapper and invalidates the client in every cluster node's cache
+        // so when only the mappers differ the changed mappers are updated individually
+        update = new ClientRepresentation();
+        update.setProtocolMappers( updateProtocolMappers( clientResource, clientID, candidate, client ) );
+      }
+      else
+      {
+        c_requestExecutor.execute( "Update client '" + clientID + "'", attempt -> {
+          clientResource.update( candidate );
+          return null;
+        } );
+        update = candidate;
+      }
+      if ( null != c_stateManifest )
+      {
+        // The state manifest records the representation produced by the server so re-read the client
+        index.put( c_requestExecutor.execute( "Read client '" + clientID + "'",
+                                              attempt -> clientResource.toRepresentation() ) );
+      }
+      else
+      {
+        index.update( client, update );
+      }
+    }
+    catch ( final Exception e )
+    {
+      error( "Error uploading client configuration " + clientID );
+      throw e;
+    }
+  }
+
+  /**
+   * Return true if the candidate differs from the client only in protocol mappers that can be matched by name.
+   */
+  private static boolean isProtocolMapperUpdate( @Nonnull final ClientRepresentation candidate,
+                                                 @Nonnull final ClientRepresentation client )
+  {
+    final List<ProtocolMapperRepresentation> mappers = candidate.getProtocolMappers();
+    if ( null == mappers || mappers.stream().anyMatch( mapper -> null == mapper.getName() ) )
+    {
+      return false;
+    }
+    final List<ClientDiff.Change> changes = ClientDiff.diff( candidate, client );
+    return !changes.isEmpty() && changes.stream().allMatch( ClientDiff::isProtocolMapperChange );
+  }
+
+  /**
+   * Create, update and delete the protocol mappers of the client so that they match the candidate.
+   * Mappers are matched by name and mappers that are unchanged are not touched.
+   *
+   * @return the protocol mappers of the client after the update.
+   */
+  @Nonnull
+  private static List<ProtocolMapperRepresentation> updateProtocolMappers( @Nonnull final ClientResource clientResource,
+                                                                           @Nonnull final String clientID,
+                                                                           @Nonnull final ClientRepresentation candidate,
+                                                                           @Nonnull final ClientRepresentation client )
+  {
+    final ProtocolMappersResource resource = clientResource.getProtocolMappers();
+    final Map<String, ProtocolMapperRepresentation> existing = new HashMap<>();
+    if ( null != client.getProtocolMappers() )
+    {
+      for ( final ProtocolMapperRepresentation mapper : client.getProtocolMappers() )
+      {
+        existing.put( mapper.getName(), mapper );
+      }
+    }
+    final List<ProtocolMapperRepresentation> mappers = new ArrayList<>();
+    for ( final ProtocolMapperRepresentation desired : Objects.requireNonNull( candidate.getProtocolMappers() ) )
+    {
+      final String name = desired.getName();
+      final ProtocolMapperRepresentation current = existing.remove( name );
+      final ProtocolMapperRepresentation mapper =
+        JsonSerialization.mapper.convertValue( desired, ProtocolMapperRepresentation.class );
+      if ( null == current )
+      {
+        mapper.setId( createProtocolMapper( resource, clientID, mapper ) );
+      }
+      else
+      {
+        mapper.setId( current.getId() );
+        if ( !ClientDiff.diff( desired, current ).isEmpty() )
+        {
+          c_requestExecutor.execute( "Update mapper '" + name + "' of client '" + clientID + "'", attempt -> {
+            resource.update( mapper.getId(), mapper );
+            return null;
+          } );
+        }
+      }
+      mappers.add( mapper );
+    }
+    for ( final ProtocolMapperRepresentation mapper : existing.values() )
+    {
+      final String description = "Delete mapper '" + mapper.getName() + "' of client '" + clientID + "'";
+      c_requestExecutor.execute( description, attempt -> {
+        try
+        {
+          resource.delete( mapper.getId() );
+        }
+        catch ( final NotFoundException nfe )
+        {
+          // A failed earlier attempt may have deleted the mapper
+          if ( 1 == attempt )
+          {
+            throw nfe;
+          }
+        }
+        return null;
+      } );
+    }
+    return mappers;
+  }
+
+  /**
+   * Create the protocol mapper and return the id of the created mapper.
+   */
+  @Nonnull
+  private static String createProtocolMapper( @Nonnull final ProtocolMappersResource resource,
+                                              @Nonnull final String clientID,
+                                              @Nonnull final ProtocolMapperRepresentation mapper )
+  {
+    final String name = mapper.getName();
+    return c_requestExecutor.execute( "Create mapper '" + name + "' of client '" + clientID + "'", attempt -> {
+      if ( attempt > 1 )
+      {
+        // Creation is not idempotent so check whether a failed earlier attempt created the mapper
+        for ( final ProtocolMapperRepresentation existing : resource.getMappers() )
+        {
+          if ( name.equals( existing.getName() ) )
+          {
+            return existing.getId();
+          }
+        }
+      }
+      return getCreatedId( resource.createMapper( mapper ), "mapper '" + name + "' of client '" + clientID + "'" );
+    } );
+  }
+
+  /**
+   * Return the id of the resource created by the request and close the response.
+   *
+   * @param description the description of the resource used in the error message if the request failed.
+   * @throws WebApplicationException if the server failed or throttled the request and the request may be retried.
+   * @throws IllegalStateException   if the server rejected the request.
+   */
+  @Nonnull
+  private static String getCreatedId( @Nonnull final Response response, @Nonnull final String description )
+  {
+    try
+    {
+      final int status = response.getStatus();
+      if ( status != Response.Status.CREATED.getStatusCode() )
+      {
+        final String message =
+          "Failed to create " + description + " due to " +
+          response.getStatusInfo().getStatusCode() + ":" + response.getStatusInfo().getReasonPhrase();
+        if ( 429 == status || status >= 500 )
+        {
+          throw new WebApplicationException( message, status );
+        }
+        throw new IllegalStateException( message );
+      }
+      return CreatedResponseUtil.getCreatedId( response );
+    }
+    finally
+    {
+      response.close();
+    }
+  }
+
+  /**
+   * Create the client and record the created client in the index.
+   */
+  private static void createClient( @Nonnull final RealmResource realm,
+                                    @Nonnull final ClientIndex index,
+                                    @Nonnull final ClientRepresentation candidate )
+  {
+    final String clientID = candidate.getClientId();
+    info( "Creating client with clientId '" + clientID + "'" );
+    try
+    {
+      final String id = c_requestExecutor.execute( "Create client '" + clientID + "'", attempt -> {
+        if ( attempt > 1 )
+        {
+          // Creation is not idempotent so check whether a failed earlier attempt created the client
+          final List<ClientRepresentation> existing = realm.clients().findByClientId( clientID );
+          if ( !existing.isEmpty() )
+          {
+            return existing.get( 0 ).getId();
+          }
+        }
+        return getCreatedId( realm.clients().create( candidate ), "client '" + clientID + "'" );
+      } );
+      candidate.setId( id );
+      // The state manifest records the representation produced by the server so re-read the client
+      index.put( null != c_stateManifest ?
+                 c_requestExecutor.execute( "Read client '" + clientID + "'",
+                                            attempt -> realm.clients().get( id ).toRepresentation() ) :
+                 candidate );
+    }
+    catch ( final Exception e )
+    {
+      error( "Error uploading client configuration " + clientID );
+      throw e;
+    }
+  }
+
+  private static boolean processOptions( @Nonnull final String[] args )
+  {
+    // Parse the arguments
+    final CLArgsParser parser = new CLArgsParser( args, OPTIONS );
+
+    //Make sure that there was no errors parsing arguments
+    if ( null != parser.getErrorString() )
+    {
+      error( parser.getErrorString() );
+      return false;
+    }
 
     // Get a list of parsed options
     final List<CLOption> options = parser.getArguments();
+    boolean commandSpecified = false;
     for ( final CLOption option : options )
     {
       switch ( option.getId() )
       {
         case CLOption.TEXT_ARGUMENT:
         {
-          error( "Invalid text argument supplied: " + option.getArgument() );
-          return false;
+          final String command = option.getArgument();
+          if ( !commandSpecified &&
+               ( CONVERGE_COMMAND.equals( command ) ||
+                 PLAN_COMMAND.equals( command ) ||
+                 APPLY_COMMAND.equals( command ) ||
+                 WATCH_COMMAND.equals( command ) ||
+                 BUNDLE_COMMAND.equals( command ) ||
+                 CHECK_COMMAND.equals( command ) ) )
+          {
+            c_command = command;
+            commandSpecified = true;
+            break;
+          }
+          error( "Invalid text argument supplied: " + command );
+          return false;
+        }
+        case SERVER_URL_OPT:
+        {
+          c_serverURL = option.getArgument();
+          break;
+        }
+        case REALM_NAME_OPT:
+        {
+          c_realmNames.add( option.getArgument() );
+          break;
+        }
+        case ADMIN_USERNAME_OPT:
+        {
+          c_adminUsername = option.getArgument();
+          break;
+        }
+        case ADMIN_PASSWORD_OPT:
+        {
+          c_adminPassword = option.getArgument();
+          break;
+        }
+        case ADMIN_REALM_NAME_OPT:
+        {
+          c_adminRealmName = option.getArgument();
+          break;
+        }
+        case ADMIN_CLIENT_NAME_OPT:
+        {
+          c_adminClient = option.getArgument();
+          break;
+        }
+        case ENV_OPT:
+        {
+          c_envs.put( option.getArgument(), option.getArgument( 1 ) );
+          break;
+        }
+        case REALM_ENV_OPT:
+        {
+          final String setting = option.getArgument( 1 );
+          final int separator = setting.indexOf( '=' );
+          if ( separator < 1 )
+          {
+            error( "Invalid realm setting specified for realm " + option.getArgument() + ": " + setting );
+            return false;
+          }
+          c_realmEnvs
+            .computeIfAbsent( option.getArgument(), k -> new HashMap<>() )
+            .put( setting.substring( 0, separator ), setting.substring( separator + 1 ) );
+          break;
+        }
+        case REALM_SECRETS_DIR_OPT:
+        {
+          c_realmSecretsDirs.put( option.getArgument(), new File( option.getArgument( 1 ) ) );
+          break;
+        }
+        case REALM_CONCURRENCY_OPT:
+        {
+          final String value = option.getArgument();
+          c_realmConcurrency = parsePositiveInteger( value );
+          if ( c_realmConcurrency < 1 )
+          {
+            error( "Invalid realm concurrency specified: " + value );
+            return false;
+          }
+          break;
+        }
+        case DELETE_UNKNOWN_CLIENTS_OPT:
+        {
+          c_deleteUnmatchedClients = true;
+          break;
+        }
+        case STANDARD_UNMANAGED_CLIENTS_OPT:
+        {
+          c_unmanagedClients.add( "admin-cli" );
+          c_unmanagedClients.add( "account" );
+          c_unmanagedClients.add( "broker" );
+          c_unmanagedClients.add( "realm-management" );
+          c_unmanagedClients.add( "security-admin-console" );
+          break;
+        }
+        case DETERMINISTIC_UUIDS_OPT:
+        {
+          c_deterministicUUIDs = true;
+          break;
+        }
+        case CONCURRENCY_OPT:
+        {
+          final String value = option.getArgument();
+          c_concurrency = parsePositiveInteger( value );
+          if ( c_concurrency < 1 )
+          {
+            error( "Invalid concurrency specified: " + value );
+            return false;
+          }
+          break;
+        }
+        case HTTP_POOL_SIZE_OPT:
+        {
+          final String value = option.getArgument();
+          c_httpPoolSize = parsePositiveInteger( value );
+          if ( c_httpPoolSize < 1 )
+          {
+            error( "Invalid http pool size specified: " + value );
+            return false;
+          }
+          break;
+        }
+        case HTTP_KEEP_ALIVE_OPT:
+        {
+          final String value = option.getArgument();
+          c_httpKeepAlive = parsePositiveInteger( value );
+          if ( c_httpKeepAlive < 1 )
+          {
+            error( "Invalid http keep alive specified: " + value );
+            return false;
+          }
+          break;
+        }
+        case CONNECT_TIMEOUT_OPT:
+        {
+          final String value = option.getArgument();
+          c_connectTimeout = parsePositiveInteger( value );
+          if ( c_connectTimeout < 1 )
+          {
+            error( "Invalid connect timeout specified: " + value );
+            return false;
+          }
+          break;
+        }
+        case READ_TIMEOUT_OPT:
+        {
+          final String value = option.getArgument();
+          c_readTimeout = parsePositiveInteger( value );
+          if ( c_readTimeout < 1 )
+          {
+            error( "Invalid read timeout specified: " + value );
+            return false;
+          }
+          break;
+        }
+        case GZIP_OPT:
+        {
+          c_gzip = true;
+          break;
+        }
+        case MAX_RETRIES_OPT:
+        {
+          final String value = option.getArgument();
+          c_maxRetries = "0".equals( value ) ? 0 : parsePositiveInteger( value );
+          if ( c_maxRetries < 1 && !"0".equals( value ) )
+          {
+            error( "Invalid max retries specified: " + value );
+            return false;
+          }
+          break;
+        }
+        case RATE_LIMIT_OPT:
+        {
+          final String value = option.getArgument();
+          c_rateLimit = parsePositiveInteger( value );
+          if ( c_rateLimit < 1 )
+          {
+            error( "Invalid rate limit specified: " + value );
+            return false;
+          }
+          break;
         }
-        case SERVER_URL_OPT:
+        case DELETE_CLIENT_OPT:
         {
-          c_serverURL = option.getArgument();
+          c_clientsToDelete.add( option.getArgument() );
           break;
         }
-        case REALM_NAME_OPT:
+        case UNMANAGED_CLIENT_OPT:
         {
-          c_realmName = option.getArgument();
+          c_unmanagedClients.add( option.getArgument() );
           break;
         }
-        case ADMIN_USERNAME_OPT:
+        case SECRETS_DIR_OPT:
         {
-          c_adminUsername = option.getArgument();
+          c_secretsDir = new File( option.getArgument() );
           break;
         }
-        case ADMIN_PASSWORD_OPT:
+        case INCLUDE_OPT:
         {
-          c_adminPassword = option.getArgument();
+          c_includes.add( option.getArgument() );
           break;
         }
-        case ADMIN_REALM_NAME_OPT:
+        case EXCLUDE_OPT:
         {
-          c_adminRealmName = option.getArgument();
+          c_excludes.add( option.getArgument() );
           break;
         }
-        case ADMIN_CLIENT_NAME_OPT:
+        case SECRETS_BUNDLE_OPT:
         {
-          c_adminClient = option.getArgument();
+          c_secretsBundle = option.getArgument();
           break;
         }
-        case ENV_OPT:
+        case PLAN_FILE_OPT:
         {
-          c_envs.put( option.getArgument(), option.getArgument( 1 ) );
+          c_planFile = new File( option.getArgument() );
           break;
         }
-        case DELETE_UNKNOWN_CLIENTS_OPT:
+        case STATE_FILE_OPT:
         {
-          c_deleteUnmatchedClients = true;
+          c_stateFile = new File( option.getArgument() );
           break;
         }
-        case STANDARD_UNMANAGED_CLIENTS_OPT:
+        case TOKEN_CACHE_OPT:
         {
-          c_unmanagedClients.add( "admin-cli" );
-          c_unmanagedClients.add( "account" );
-          c_unmanagedClients.add( "broker" );
-          c_unmanagedClients.add( "realm-management" );
-          c_unmanagedClients.add( "security-admin-console" );
+          c_tokenCache = new File( option.getArgument() );
           break;
         }
-        case DELETE_CLIENT_OPT:
+        case METRICS_FILE_OPT:
         {
-          c_clientsToDelete.add( option.getArgument() );
+          c_metricsFile = new File( option.getArgument() );
           break;
         }
-        case UNMANAGED_CLIENT_OPT:
+        case PROMETHEUS_FILE_OPT:
         {
-          c_unmanagedClients.add( option.getArgument() );
+          c_prometheusFile = new File( option.getArgument() );
           break;
         }
-        case SECRETS_DIR_OPT:
+        case TARGETS_OPT:
         {
-          c_secretsDir = new File( option.getArgument() );
+          c_targetsFile = new File( option.getArgument() );
+          break;
+        }
+        case BUNDLE_OPT:
+        {
+          c_bundle = new File( option.getArgument() );
+          break;
+        }
+        case CLIENT_OPT:
+        {
+          c_targetClients.add( option.getArgument() );
+          c_targetClientPatterns.add( toClientIdPattern( option.getArgument() ) );
+          break;
+        }
+        case CHANGED_FILE_OPT:
+        {
+          c_changedFiles.add( Paths.get( option.getArgument() ).toAbsolutePath().normalize() );
+          break;
+        }
+        case CHANGED_FILES_FROM_OPT:
+        {
+          final String value = option.getArgument();
+          try
+          {
+            final List<String> lines =
+              "-".equals( value ) ?
+              new BufferedReader( new InputStreamReader( System.in, StandardCharsets.UTF_8 ) )
+                .lines()
+                .collect( Collectors.toList() ) :
+              Files.readAllLines( Paths.get( value ), StandardCharsets.UTF_8 );
+            for ( final String line : lines )
+            {
+              if ( !line.trim().isEmpty() )
+              {
+                c_changedFiles.add( Paths.get( line.trim() ).toAbsolutePath().normalize() );
+              }
+            }
+          }
+          catch ( final IOException | UncheckedIOException e )
+          {
+            error( "Error reading changed files from " + value + ". Error: " + e );
+            return false;
+          }
+          break;
+        }
+        case BULK_OPT:
+        {
+          c_bulk = true;
+          break;
+        }
+        case BULK_BATCH_SIZE_OPT:
+        {
+          final String value = option.getArgument();
+          c_bulkBatchSize = parsePositiveInteger( value );
+          if ( c_bulkBatchSize < 1 )
+          {
+            error( "Invalid bulk batch size specified: " + value );
+            return false;
+          }
+          break;
+        }
+        case DEBOUNCE_OPT:
+        {
+          final String value = option.getArgument();
+          c_debounce = parsePositiveInteger( value );
+          if ( c_debounce < 1 )
+          {
+            error( "Invalid debounce specified: " + value );
+            return false;
+          }
+          break;
+        }
+        case RECONCILE_INTERVAL_OPT:
+        {
+          final String value = option.getArgument();
+          c_reconcileInterval = parsePositiveInteger( value );
+          if ( c_reconcileInterval < 1 )
+          {
+            error( "Invalid reconcile interval specified: " + value );
+            return false;
+          }
           break;
         }
         case DIR_OPT:
@@ -574,75 +2766,230 @@ public class Main
         }
       }
     }
-    if ( null == c_dir )
+    final boolean apply = APPLY_COMMAND.equals( c_command );
+    final boolean bundle = BUNDLE_COMMAND.equals( c_command );
+    final boolean readsBundle = null != c_bundle && !bundle;
+    // The apply command reads the clients from the plan file rather than the configuration directory
+    if ( ( !apply && !readsBundle ) || null != c_dir )
+    {
+      if ( null == c_dir )
+      {
+        error( "No configuration directory specified." );
+        return false;
+      }
+      if ( !c_dir.exists() )
+      {
+        error( "Configuration directory specified " + c_dir.getAbsolutePath() + " does not exist." );
+        return false;
+      }
+      if ( !c_dir.canRead() )
+      {
+        error( "Configuration directory specified " + c_dir.getAbsolutePath() + " is not readable." );
+        return false;
+      }
+      if ( !c_dir.isDirectory() )
+      {
+        error( "Configuration directory specified " + c_dir.getAbsolutePath() + " is not a directory." );
+        return false;
+      }
+    }
+    if ( null != c_secretsDir )
+    {
+      if ( !isValidSecretsDir( c_secretsDir ) )
+      {
+        return false;
+      }
+    }
+    else if ( null != c_dir )
+    {
+      c_secretsDir = c_dir;
+    }
+    else
     {
-      error( "No configuration directory specified." );
+      error( "No secrets directory specified." );
       return false;
     }
-    if ( !c_dir.exists() )
+    if ( null != c_stateFile && c_stateFile.isDirectory() )
     {
-      error( "Configuration directory specified " + c_dir.getAbsolutePath() + " does not exist." );
+      error( "State file specified " + c_stateFile.getAbsolutePath() + " is a directory." );
       return false;
     }
-    if ( !c_dir.canRead() )
+    if ( null != c_tokenCache && c_tokenCache.isDirectory() )
     {
-      error( "Configuration directory specified " + c_dir.getAbsolutePath() + " is not readable." );
+      error( "Token cache specified " + c_tokenCache.getAbsolutePath() + " is a directory." );
       return false;
     }
-    if ( !c_dir.isDirectory() )
+    if ( null != c_metricsFile && c_metricsFile.isDirectory() )
     {
-      error( "Configuration directory specified " + c_dir.getAbsolutePath() + " is not a directory." );
+      error( "Metrics file specified " + c_metricsFile.getAbsolutePath() + " is a directory." );
       return false;
     }
-    if ( null != c_secretsDir )
+    if ( null != c_prometheusFile && c_prometheusFile.isDirectory() )
+    {
+      error( "Prometheus file specified " + c_prometheusFile.getAbsolutePath() + " is a directory." );
+      return false;
+    }
+    if ( ( PLAN_COMMAND.equals( c_command ) || apply ) && null == c_planFile )
+    {
+      error( "No plan file specified." );
+      return false;
+    }
+    if ( apply && !c_planFile.isFile() )
+    {
+      error( "Plan file specified " + c_planFile.getAbsolutePath() + " does not exist." );
+      return false;
+    }
+    if ( bundle && null == c_bundle )
+    {
+      error( "No bundle file specified." );
+      return false;
+    }
+    if ( bundle && c_bundle.isDirectory() )
+    {
+      error( "Bundle file specified " + c_bundle.getAbsolutePath() + " is a directory." );
+      return false;
+    }
+    if ( readsBundle && !c_bundle.isFile() )
+    {
+      error( "Bundle file specified " + c_bundle.getAbsolutePath() + " does not exist." );
+      return false;
+    }
+    if ( readsBundle && WATCH_COMMAND.equals( c_command ) )
+    {
+      error( "The watch command can not read client configurations from a bundle." );
+      return false;
+    }
+    if ( readsBundle && !c_changedFiles.isEmpty() )
+    {
+      error( "Changed files can not be specified when reading client configurations from a bundle." );
+      return false;
+    }
+    if ( isTargeted() && !CONVERGE_COMMAND.equals( c_command ) && !CHECK_COMMAND.equals( c_command ) )
+    {
+      error( "Clients can only be selected by --client or changed files when using the converge or check command." );
+      return false;
+    }
+    if ( bundle )
+    {
+      // Bundling only reads the configuration directory so no server or realm is required
+      return true;
+    }
+    if ( null != c_targetsFile )
     {
-      if ( c_secretsDir.exists() && !c_secretsDir.canRead() )
+      if ( !c_targetsFile.isFile() )
       {
-        error( "Secret directory specified " + c_secretsDir.getAbsolutePath() + " is not readable." );
+        error( "Targets file specified " + c_targetsFile.getAbsolutePath() + " does not exist." );
         return false;
       }
-      if ( c_secretsDir.exists() && !c_secretsDir.isDirectory() )
+      if ( !CONVERGE_COMMAND.equals( c_command ) )
       {
-        error( "Secret directory specified " + c_secretsDir.getAbsolutePath() + " is not a directory." );
+        error( "Multiple targets can only be converged using the converge command." );
+        return false;
+      }
+      if ( null != c_serverURL )
+      {
+        error( "A server url can not be specified when converging multiple targets." );
+        return false;
+      }
+      if ( !c_realmSecretsDirs.isEmpty() )
+      {
+        error( "Realm secret directories can not be specified when converging multiple targets. " +
+               "Specify the secretsDir of each target instead." );
         return false;
       }
     }
-    else
-    {
-      c_secretsDir = c_dir;
-    }
-    if ( null == c_realmName )
-    {
-      error( "No realm specified to update." );
-      return false;
-    }
-    if ( null == c_serverURL )
+    else if ( null == c_serverURL )
     {
       error( "No server url specified." );
       return false;
     }
-    if ( null == c_adminPassword )
+    else if ( null == c_adminPassword )
     {
       error( "No admin password specified." );
       return false;
     }
     if ( c_verbose )
     {
-      info( "Server URL: " + c_serverURL );
+      info( "Command: " + c_command );
+      if ( null != c_targetsFile )
+      {
+        info( "Targets file: " + c_targetsFile.getAbsolutePath() );
+      }
+      else
+      {
+        info( "Server URL: " + c_serverURL );
+      }
       info( "Admin Realm Name: " + c_adminRealmName );
       info( "Admin Client Name: " + c_adminClient );
       info( "Admin Username: " + c_adminUsername );
-      info( "Realm: " + c_realmName );
       info( "Delete Unknown Clients: " + c_deleteUnmatchedClients );
+      info( "Deterministic UUIDs: " + c_deterministicUUIDs );
+      info( "Concurrency: " + c_concurrency );
+      info( "Realm Concurrency: " + c_realmConcurrency );
+      info( "HTTP Pool Size: " + ( 0 != c_httpPoolSize ? String.valueOf( c_httpPoolSize ) : "auto" ) );
+      info( "HTTP Keep Alive: " + c_httpKeepAlive + "s" );
+      info( "Connect Timeout: " + c_connectTimeout + "s" );
+      info( "Read Timeout: " + c_readTimeout + "s" );
+      info( "Gzip: " + c_gzip );
+      info( "Max Retries: " + c_maxRetries );
+      info( "Rate Limit: " + ( 0 != c_rateLimit ? c_rateLimit + "/s" : "unlimited" ) );
+      info( "Bulk: " + ( c_bulk ? "batches of " + c_bulkBatchSize : "false" ) );
+      if ( WATCH_COMMAND.equals( c_command ) )
+      {
+        info( "Debounce: " + c_debounce + "ms" );
+        info( "Reconcile Interval: " + c_reconcileInterval + "s" );
+      }
+      if ( null != c_stateFile )
+      {
+        info( "State file: " + c_stateFile.getAbsolutePath() );
+      }
+      if ( null != c_tokenCache )
+      {
+        info( "Token cache: " + c_tokenCache.getAbsolutePath() );
+      }
+      if ( null != c_metricsFile )
+      {
+        info( "Metrics file: " + c_metricsFile.getAbsolutePath() );
+      }
+      if ( null != c_prometheusFile )
+      {
+        info( "Prometheus file: " + c_prometheusFile.getAbsolutePath() );
+      }
+      if ( null != c_planFile )
+      {
+        info( "Plan file: " + c_planFile.getAbsolutePath() );
+      }
+      if ( null != c_secretsBundle )
+      {
+        info( "Secrets bundle: " + c_secretsBundle );
+      }
 
-      info( "Configuration directory: " + c_dir.getAbsolutePath() );
-      info( "Secrets directory: " + c_secretsDir.getAbsolutePath() );
-      if ( !c_envs.isEmpty() )
+      if ( null != c_dir )
+      {
+        info( "Configuration directory: " + c_dir.getAbsolutePath() );
+      }
+      if ( null != c_bundle )
+      {
+        info( "Bundle: " + c_bundle.getAbsolutePath() );
+      }
+      if ( !c_includes.isEmpty() )
+      {
+        info( "Includes: " + c_includes );
+      }
+      if ( !c_excludes.isEmpty() )
       {
-        info( "Env vars:" );
-        for ( final Map.Entry<String, String> entry : c_envs.entrySet() )
+        info( "Excludes: " + c_excludes );
+      }
+      if ( !c_targetClients.isEmpty() )
+      {
+        info( "Selected clients: " + c_targetClients );
+      }
+      if ( !c_changedFiles.isEmpty() )
+      {
+        info( "Changed files:" );
+        for ( final Path changedFile : c_changedFiles )
         {
-          info( "\t" + entry.getKey() + " = " + entry.getValue() );
+          info( "\t" + changedFile );
         }
       }
       if ( !c_unmanagedClients.isEmpty() )
@@ -655,6 +3002,162 @@ public class Main
       }
     }
 
+    // When applying a plan the realms are not known until the plan file is loaded
+    return apply || ( null != c_targetsFile ? buildTargetConfigs() : buildRealmConfigs() );
+  }
+
+  /**
+   * Build the configuration of every target and of every realm of every target from the targets file.
+   * The settings of a realm are the global settings, overridden by the settings of the target and then by
+   * the per-realm settings.
+   */
+  private static boolean buildTargetConfigs()
+  {
+    final TargetConfig defaults =
+      new TargetConfig( "",
+                        "",
+                        c_adminRealmName,
+                        c_adminClient,
+                        c_adminUsername,
+                        null != c_adminPassword ? c_adminPassword : "",
+                        c_realmNames,
+                        c_envs,
+                        c_secretsDir );
+    try
+    {
+      c_targets.addAll( TargetConfig.load( Objects.requireNonNull( c_targetsFile ).toPath(), defaults ) );
+    }
+    catch ( final IOException | IllegalStateException e )
+    {
+      error( "Error reading targets file " + c_targetsFile.getAbsolutePath() + ". Error: " + e.getMessage() );
+      return false;
+    }
+    for ( final String realmName : c_realmEnvs.keySet() )
+    {
+      if ( c_targets.stream().noneMatch( target -> target.getRealmNames().contains( realmName ) ) )
+      {
+        error( "Realm settings specified for realm " + realmName + " that is not being updated." );
+        return false;
+      }
+    }
+    for ( final TargetConfig target : c_targets )
+    {
+      if ( !isValidSecretsDir( target.getSecretsDir() ) )
+      {
+        return false;
+      }
+      for ( final String realmName : target.getRealmNames() )
+      {
+        final Map<String, String> envs = new HashMap<>( target.getEnvs() );
+        envs.putAll( c_realmEnvs.getOrDefault( realmName, Collections.emptyMap() ) );
+        final File secretsDir =
+          1 == target.getRealmNames().size() ? target.getSecretsDir() : new File( target.getSecretsDir(), realmName );
+        c_realms.add( new RealmConfig( target.getName(), realmName, envs, secretsDir ) );
+      }
+    }
+    if ( c_verbose )
+    {
+      for ( final TargetConfig target : c_targets )
+      {
+        info( "Target " + target.getName() + ": " + target.getServerUrl() + " " + target.getRealmNames() );
+      }
+      for ( final RealmConfig realm : c_realms )
+      {
+        info( "Realm " + realm.getKey() + ":" );
+        info( "\tSecrets directory: " + realm.getSecretsDir().getAbsolutePath() );
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Build the configuration of every realm to be converged from the global and per-realm settings.
+   */
+  private static boolean buildRealmConfigs()
+  {
+    if ( c_realmNames.isEmpty() )
+    {
+      error( "No realm specified to update." );
+      return false;
+    }
+    for ( final String realmName : c_realmEnvs.keySet() )
+    {
+      if ( !c_realmNames.contains( realmName ) )
+      {
+        error( "Realm settings specified for realm " + realmName + " that is not being updated." );
+        return false;
+      }
+    }
+    for ( final Map.Entry<String, File> entry : c_realmSecretsDirs.entrySet() )
+    {
+      if ( !c_realmNames.contains( entry.getKey() ) )
+      {
+        error( "Secret directory specified for realm " + entry.getKey() + " that is not being updated." );
+        return false;
+      }
+      if ( !isValidSecretsDir( entry.getValue() ) )
+      {
+        return false;
+      }
+    }
+    for ( final String realmName : c_realmNames )
+    {
+      final Map<String, String> envs = new HashMap<>( c_envs );
+      envs.putAll( c_realmEnvs.getOrDefault( realmName, Collections.emptyMap() ) );
+      // When converging multiple realms each realm downloads secrets into a separate directory by default
+      // so that clients with the same clientId in different realms do not overwrite each other's secrets
+      final File secretsDir =
+        c_realmSecretsDirs.getOrDefault( realmName,
+                                         1 == c_realmNames.size() ? c_secretsDir : new File( c_secretsDir, realmName ) );
+      c_realms.add( new RealmConfig( null, realmName, envs, secretsDir ) );
+    }
+    if ( c_verbose )
+    {
+      info( "Realms: " + c_realmNames );
+      for ( final RealmConfig realm : c_realms )
+      {
+        info( "Realm " + realm.getKey() + ":" );
+        info( "\tSecrets directory: " + realm.getSecretsDir().getAbsolutePath() );
+        if ( !realm.getEnvs().isEmpty() )
+        {
+          info( "\tEnv vars:" );
+          for ( final Map.Entry<String, String> entry : realm.getEnvs().entrySet() )
+          {
+            info( "\t\t" + entry.getKey() + " = " + entry.getValue() );
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parse a positive integer returning 0 if the value is not a valid integer.
+   */
+  private static int parsePositiveInteger( @Nonnull final String value )
+  {
+    try
+    {
+      return Math.max( 0, Integer.parseInt( value ) );
+    }
+    catch ( final NumberFormatException nfe )
+    {
+      return 0;
+    }
+  }
+
+  private static boolean isValidSecretsDir( @Nonnull final File secretsDir )
+  {
+    if ( secretsDir.exists() && !secretsDir.canRead() )
+    {
+      error( "Secret directory specified " + secretsDir.getAbsolutePath() + " is not readable." );
+      return false;
+    }
+    if ( secretsDir.exists() && !secretsDir.isDirectory() )
+    {
+      error( "Secret directory specified " + secretsDir.getAbsolutePath() + " is not a directory." );
+      return false;
+    }
     return true;
   }
 
@@ -666,7 +3169,8 @@ public class Main
     final String lineSeparator = System.getProperty( "line.separator" );
     info( "java " +
           Main.class.getName() +
-          " [options] message" +
+          " [options] [" + CONVERGE_COMMAND + "|" + PLAN_COMMAND + "|" + APPLY_COMMAND + "|" + WATCH_COMMAND + "|" +
+          BUNDLE_COMMAND + "|" + CHECK_COMMAND + "]" +
           lineSeparator +
           "Options: " +
           lineSeparator +
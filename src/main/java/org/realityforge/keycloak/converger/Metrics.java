@@ -0,0 +1,523 @@
+package org.realityforge.keycloak.converger;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnull;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Records the time spent in each phase of a run and the count, latency and size of every request made to the
+ * server. Requests are recorded by a filter registered with the http client and are grouped by method, realm
+ * and endpoint, with the ids of resources in the path replaced by a placeholder. The latency of a request is
+ * the time until the response headers are received while the sizes are the bytes of the request and response
+ * entities. The time spent in a phase is summed across the operations performed concurrently in the phase.
+ *
+ * <p>The metrics are written as a json summary or in the Prometheus text format so that they can be collected
+ * by the textfile collector of the node exporter.</p>
+ */
+final class Metrics
+{
+  /**
+   * An action whose duration is recorded as part of a phase.
+   */
+  @FunctionalInterface
+  interface Action<T, E extends Exception>
+  {
+    T call()
+      throws E;
+  }
+
+  /**
+   * The upper bounds of the latency histogram buckets.
+   */
+  @Nonnull
+  private static final long[] LATENCY_BUCKETS_MILLIS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+  @Nonnull
+  private static final String PREFIX = "keycloak_converger_";
+  @Nonnull
+  private static final String ADMIN_REALMS_PATH = "/admin/realms/";
+  @Nonnull
+  private static final String REALMS_PATH = "/realms/";
+  @Nonnull
+  private static final String START_TIME_PROPERTY = Metrics.class.getName() + ".startTime";
+  @Nonnull
+  private static final String REQUEST_PROPERTY = Metrics.class.getName() + ".request";
+  private final long _startTime = System.currentTimeMillis();
+  private final long _start = System.nanoTime();
+  @Nonnull
+  private final Map<String, Timing> _phases = new ConcurrentHashMap<>();
+  @Nonnull
+  private final Map<String, RequestMetrics> _requests = new ConcurrentHashMap<>();
+
+  /**
+   * Perform the action, recording its duration as part of the phase.
+   */
+  <T, E extends Exception> T time( @Nonnull final String phase, @Nonnull final Action<T, E> action )
+    throws E
+  {
+    final long start = System.nanoTime();
+    try
+    {
+      return action.call();
+    }
+    finally
+    {
+      recordPhase( phase, System.nanoTime() - start );
+    }
+  }
+
+  void recordPhase( @Nonnull final String phase, final long nanos )
+  {
+    _phases.computeIfAbsent( phase, p -> new Timing() ).record( nanos );
+  }
+
+  /**
+   * Return the filter that records the requests made by a client.
+   */
+  @Nonnull
+  Object newRequestFilter()
+  {
+    return new RequestFilter();
+  }
+
+  /**
+   * Write the metrics as json to the file.
+   *
+   * @param success true if the run succeeded.
+   */
+  void writeJson( @Nonnull final Path file, @Nonnull final String command, final boolean success )
+    throws IOException
+  {
+    final Map<String, Object> root = new LinkedHashMap<>();
+    root.put( "command", command );
+    root.put( "success", success );
+    root.put( "startTime", _startTime );
+    root.put( "durationMillis", TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - _start ) );
+
+    final Map<String, Object> phases = new TreeMap<>();
+    _phases.forEach( ( phase, timing ) -> phases.put( phase, timing.toJson() ) );
+    root.put( "phases", phases );
+
+    final Map<String, Object> requests = new TreeMap<>();
+    for ( final RequestMetrics metrics : _requests.values() )
+    {
+      final Map<String, Object> request = new LinkedHashMap<>();
+      request.put( "method", metrics._method );
+      request.put( "realm", metrics._realm );
+      request.put( "endpoint", metrics._endpoint );
+      final Map<String, Long> statuses = new TreeMap<>();
+      metrics._statuses.forEach( ( status, count ) -> statuses.put( String.valueOf( status ), count.sum() ) );
+      request.put( "statuses", statuses );
+      request.put( "bytesSent", metrics._bytesSent.sum() );
+      request.put( "bytesReceived", metrics._bytesReceived.sum() );
+      request.putAll( metrics._latency.toJson() );
+      final Map<String, Long> buckets = new LinkedHashMap<>();
+      for ( int i = 0; i < LATENCY_BUCKETS_MILLIS.length; i++ )
+      {
+        buckets.put( String.valueOf( LATENCY_BUCKETS_MILLIS[ i ] ), metrics._buckets.get( i ) );
+      }
+      buckets.put( "+Inf", metrics._latency._count.sum() );
+      request.put( "latencyBucketsMillis", buckets );
+      requests.put( metrics.key(), request );
+    }
+    root.put( "requests", requests );
+    write( file, JsonSerialization.writeValueAsPrettyString( root ).getBytes( StandardCharsets.UTF_8 ) );
+  }
+
+  /**
+   * Write the metrics in the Prometheus text format to the file.
+   *
+   * @param success true if the run succeeded.
+   */
+  void writePrometheus( @Nonnull final Path file, @Nonnull final String command, final boolean success )
+    throws IOException
+  {
+    final StringBuilder sb = new StringBuilder();
+    final String runLabels = "{command=\"" + escape( command ) + "\"}";
+    header( sb, "last_run_timestamp_seconds", "gauge", "The time at which the last run started." );
+    sb.append( PREFIX ).append( "last_run_timestamp_seconds" ).append( runLabels ).append( ' ' )
+      .append( _startTime / 1000.0 ).append( '\n' );
+    header( sb, "last_run_duration_seconds", "gauge", "The duration of the last run." );
+    sb.append( PREFIX ).append( "last_run_duration_seconds" ).append( runLabels ).append( ' ' )
+      .append( toSeconds( System.nanoTime() - _start ) ).append( '\n' );
+    header( sb, "last_run_success", "gauge", "1 if the last run succeeded, 0 otherwise." );
+    sb.append( PREFIX ).append( "last_run_success" ).append( runLabels ).append( ' ' )
+      .append( success ? 1 : 0 ).append( '\n' );
+
+    header( sb, "phase_duration_seconds", "summary", "The time spent in each phase of the last run." );
+    for ( final Map.Entry<String, Timing> entry : new TreeMap<>( _phases ).entrySet() )
+    {
+      final String labels = "{phase=\"" + escape( entry.getKey() ) + "\"}";
+      final Timing timing = entry.getValue();
+      sb.append( PREFIX ).append( "phase_duration_seconds_sum" ).append( labels ).append( ' ' )
+        .append( toSeconds( timing._sum.sum() ) ).append( '\n' );
+      sb.append( PREFIX ).append( "phase_duration_seconds_count" ).append( labels ).append( ' ' )
+        .append( timing._count.sum() ).append( '\n' );
+    }
+
+    final Map<String, RequestMetrics> requests = new TreeMap<>();
+    _requests.values().forEach( metrics -> requests.put( metrics.key(), metrics ) );
+    header( sb, "http_requests_total", "counter", "The number of responses received from the server by status." );
+    for ( final RequestMetrics metrics : requests.values() )
+    {
+      for ( final Map.Entry<Integer, LongAdder> entry : new TreeMap<>( metrics._statuses ).entrySet() )
+      {
+        sb.append( PREFIX ).append( "http_requests_total" )
+          .append( metrics.labels( ",status=\"" + entry.getKey() + "\"" ) ).append( ' ' )
+          .append( entry.getValue().sum() ).append( '\n' );
+      }
+    }
+    header( sb, "http_request_duration_seconds", "histogram", "The time until the response headers are received." );
+    for ( final RequestMetrics metrics : requests.values() )
+    {
+      final String name = PREFIX + "http_request_duration_seconds";
+      for ( int i = 0; i < LATENCY_BUCKETS_MILLIS.length; i++ )
+      {
+        sb.append( name ).append( "_bucket" )
+          .append( metrics.labels( ",le=\"" + LATENCY_BUCKETS_MILLIS[ i ] / 1000.0 + "\"" ) ).append( ' ' )
+          .append( metrics._buckets.get( i ) ).append( '\n' );
+      }
+      final long count = metrics._latency._count.sum();
+      sb.append( name ).append( "_bucket" ).append( metrics.labels( ",le=\"+Inf\"" ) ).append( ' ' )
+        .append( count ).append( '\n' );
+      sb.append( name ).append( "_sum" ).append( metrics.labels( "" ) ).append( ' ' )
+        .append( toSeconds( metrics._latency._sum.sum() ) ).append( '\n' );
+      sb.append( name ).append( "_count" ).append( metrics.labels( "" ) ).append( ' ' ).append( count ).append( '\n' );
+    }
+    header( sb, "http_request_bytes_total", "counter", "The bytes of request entities sent to the server." );
+    for ( final RequestMetrics metrics : requests.values() )
+    {
+      sb.append( PREFIX ).append( "http_request_bytes_total" ).append( metrics.labels( "" ) ).append( ' ' )
+        .append( metrics._bytesSent.sum() ).append( '\n' );
+    }
+    header( sb, "http_response_bytes_total", "counter", "The bytes of response entities received from the server." );
+    for ( final RequestMetrics metrics : requests.values() )
+    {
+      sb.append( PREFIX ).append( "http_response_bytes_total" ).append( metrics.labels( "" ) ).append( ' ' )
+        .append( metrics._bytesReceived.sum() ).append( '\n' );
+    }
+    write( file, sb.toString().getBytes( StandardCharsets.UTF_8 ) );
+  }
+
+  /**
+   * Return the metrics of requests with the specified method to the specified path.
+   */
+  @Nonnull
+  private RequestMetrics getRequestMetrics( @Nonnull final String method, @Nonnull final String path )
+  {
+    final String realm;
+    final String endpoint;
+    final int adminIndex = path.indexOf( ADMIN_REALMS_PATH );
+    final int realmsIndex = path.indexOf( REALMS_PATH );
+    if ( -1 != adminIndex )
+    {
+      final String[] segments = path.substring( adminIndex + ADMIN_REALMS_PATH.length() ).split( "/" );
+      realm = segments[ 0 ];
+      final StringBuilder sb = new StringBuilder();
+      for ( int i = 1; i < segments.length; i++ )
+      {
+        if ( 1 != i )
+        {
+          sb.append( '/' );
+        }
+        // The second segment below the realm identifies a resource such as a client
+        sb.append( 2 == i ? "{id}" : segments[ i ] );
+      }
+      endpoint = sb.toString();
+    }
+    else if ( -1 != realmsIndex )
+    {
+      final String remainder = path.substring( realmsIndex + REALMS_PATH.length() );
+      final int separator = remainder.indexOf( '/' );
+      realm = -1 == separator ? remainder : remainder.substring( 0, separator );
+      endpoint = -1 == separator ? "" : remainder.substring( separator + 1 );
+    }
+    else
+    {
+      realm = "";
+      endpoint = path;
+    }
+    return _requests.computeIfAbsent( method + " " + realm + " " + endpoint,
+                                      k -> new RequestMetrics( method, realm, endpoint ) );
+  }
+
+  private static void header( @Nonnull final StringBuilder sb,
+                              @Nonnull final String name,
+                              @Nonnull final String type,
+                              @Nonnull final String help )
+  {
+    sb.append( "# HELP " ).append( PREFIX ).append( name ).append( ' ' ).append( help ).append( '\n' );
+    sb.append( "# TYPE " ).append( PREFIX ).append( name ).append( ' ' ).append( type ).append( '\n' );
+  }
+
+  @Nonnull
+  private static String escape( @Nonnull final String value )
+  {
+    return value.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ).replace( "\n", "\\n" );
+  }
+
+  private static double toSeconds( final long nanos )
+  {
+    return nanos / (double) TimeUnit.SECONDS.toNanos( 1 );
+  }
+
+  /**
+   * Atomically replace the file so that a collector never reads a partially written file.
+   */
+  private static void write( @Nonnull final Path file, @Nonnull final byte[] content )
+    throws IOException
+  {
+    final Path dir = file.toAbsolutePath().getParent();
+    Files.createDirectories( dir );
+    final Path tempFile = dir.resolve( "." + file.getFileName() + ".tmp" );
+    try
+    {
+      Files.write( tempFile, content );
+      Files.move( tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+    finally
+    {
+      Files.deleteIfExists( tempFile );
+    }
+  }
+
+  /**
+   * The count, total and maximum of a set of durations.
+   */
+  private static final class Timing
+  {
+    @Nonnull
+    private final LongAdder _count = new LongAdder();
+    @Nonnull
+    private final LongAdder _sum = new LongAdder();
+    @Nonnull
+    private final AtomicLong _max = new AtomicLong();
+
+    void record( final long nanos )
+    {
+      _count.increment();
+      _sum.add( nanos );
+      _max.accumulateAndGet( nanos, Math::max );
+    }
+
+    @Nonnull
+    Map<String, Object> toJson()
+    {
+      final Map<String, Object> json = new LinkedHashMap<>();
+      final long count = _count.sum();
+      json.put( "count", count );
+      json.put( "totalMillis", TimeUnit.NANOSECONDS.toMillis( _sum.sum() ) );
+      json.put( "averageMillis", 0 == count ? 0 : TimeUnit.NANOSECONDS.toMillis( _sum.sum() / count ) );
+      json.put( "maxMillis", TimeUnit.NANOSECONDS.toMillis( _max.get() ) );
+      return json;
+    }
+  }
+
+  /**
+   * The metrics of the requests made with a single method to a single endpoint of a realm.
+   */
+  private static final class RequestMetrics
+  {
+    @Nonnull
+    private final String _method;
+    @Nonnull
+    private final String _realm;
+    @Nonnull
+    private final String _endpoint;
+    @Nonnull
+    private final Map<Integer, LongAdder> _statuses = new ConcurrentHashMap<>();
+    @Nonnull
+    private final Timing _latency = new Timing();
+    /**
+     * The number of requests with a latency less than or equal to the upper bound of each bucket.
+     */
+    @Nonnull
+    private final AtomicLongArray _buckets = new AtomicLongArray( LATENCY_BUCKETS_MILLIS.length );
+    @Nonnull
+    private final LongAdder _bytesSent = new LongAdder();
+    @Nonnull
+    private final LongAdder _bytesReceived = new LongAdder();
+
+    RequestMetrics( @Nonnull final String method, @Nonnull final String realm, @Nonnull final String endpoint )
+    {
+      _method = method;
+      _realm = realm;
+      _endpoint = endpoint;
+    }
+
+    void record( final int status, final long nanos )
+    {
+      _statuses.computeIfAbsent( status, s -> new LongAdder() ).increment();
+      _latency.record( nanos );
+      final long millis = TimeUnit.NANOSECONDS.toMillis( nanos );
+      // Buckets are cumulative so a request is counted in every bucket that it fits within
+      for ( int i = 0; i < LATENCY_BUCKETS_MILLIS.length; i++ )
+      {
+        if ( millis <= LATENCY_BUCKETS_MILLIS[ i ] )
+        {
+          _buckets.incrementAndGet( i );
+        }
+      }
+    }
+
+    @Nonnull
+    String key()
+    {
+      return _realm + " " + _endpoint + " " + _method;
+    }
+
+    @Nonnull
+    String labels( @Nonnull final String extra )
+    {
+      return "{method=\"" + _method + "\",realm=\"" + escape( _realm ) + "\"," +
+             "endpoint=\"" + escape( _endpoint ) + "\"" + extra + "}";
+    }
+  }
+
+  /**
+   * Records the latency and status of each request and counts the bytes of the request and response entities.
+   */
+  private final class RequestFilter
+    implements ClientRequestFilter, ClientResponseFilter, WriterInterceptor
+  {
+    @Override
+    public void filter( @Nonnull final ClientRequestContext requestContext )
+    {
+      requestContext.setProperty( REQUEST_PROPERTY,
+                                  getRequestMetrics( requestContext.getMethod(), requestContext.getUri().getPath() ) );
+      requestContext.setProperty( START_TIME_PROPERTY, System.nanoTime() );
+    }
+
+    @Override
+    public void filter( @Nonnull final ClientRequestContext requestContext,
+                        @Nonnull final ClientResponseContext responseContext )
+    {
+      final RequestMetrics metrics = (RequestMetrics) requestContext.getProperty( REQUEST_PROPERTY );
+      final Long start = (Long) requestContext.getProperty( START_TIME_PROPERTY );
+      if ( null != metrics && null != start )
+      {
+        metrics.record( responseContext.getStatus(), System.nanoTime() - start );
+        final InputStream input = responseContext.getEntityStream();
+        if ( null != input )
+        {
+          responseContext.setEntityStream( new CountingInputStream( input, metrics._bytesReceived ) );
+        }
+      }
+    }
+
+    @Override
+    public void aroundWriteTo( @Nonnull final WriterInterceptorContext context )
+      throws IOException
+    {
+      final RequestMetrics metrics = (RequestMetrics) context.getProperty( REQUEST_PROPERTY );
+      if ( null != metrics )
+      {
+        context.setOutputStream( new CountingOutputStream( context.getOutputStream(), metrics._bytesSent ) );
+      }
+      context.proceed();
+    }
+  }
+
+  private static final class CountingInputStream
+    extends FilterInputStream
+  {
+    @Nonnull
+    private final LongAdder _count;
+
+    CountingInputStream( @Nonnull final InputStream input, @Nonnull final LongAdder count )
+    {
+      super( input );
+      _count = count;
+    }
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      final int value = super.read();
+      if ( -1 != value )
+      {
+        _count.increment();
+      }
+      return value;
+    }
+
+    @Override
+    public int read( @Nonnull final byte[] buffer, final int offset, final int length )
+      throws IOException
+    {
+      final int count = super.read( buffer, offset, length );
+      if ( count > 0 )
+      {
+        _count.add( count );
+      }
+      return count;
+    }
+
+    @Override
+    public long skip( final long n )
+      throws IOException
+    {
+      final long count = super.skip( n );
+      _count.add( count );
+      return count;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+      // Bytes re-read after a reset would otherwise be counted twice
+      return false;
+    }
+  }
+
+  private static final class CountingOutputStream
+    extends FilterOutputStream
+  {
+    @Nonnull
+    private final LongAdder _count;
+
+    CountingOutputStream( @Nonnull final OutputStream output, @Nonnull final LongAdder count )
+    {
+      super( output );
+      _count = count;
+    }
+
+    @Override
+    public void write( final int b )
+      throws IOException
+    {
+      out.write( b );
+      _count.increment();
+    }
+
+    @Override
+    public void write( @Nonnull final byte[] buffer, final int offset, final int length )
+      throws IOException
+    {
+      out.write( buffer, offset, length );
+      _count.add( length );
+    }
+  }
+}
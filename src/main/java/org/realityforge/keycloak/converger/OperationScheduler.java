@@ -0,0 +1,283 @@
+package org.realityforge.keycloak.converger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Executes a graph of per-client operations on a bounded pool of worker threads.
+ * An operation is only started once all of the operations it depends upon have completed successfully.
+ * The scheduler is fail-fast: once any operation fails no further operations are started, the operations
+ * in flight are allowed to complete and then a report of every failed and skipped operation is produced.
+ */
+final class OperationScheduler
+{
+  @Nonnull
+  private static final AtomicInteger c_poolId = new AtomicInteger();
+
+  /**
+   * A single unit of work against the server.
+   */
+  private static final class Operation
+  {
+    @Nonnull
+    private final String _key;
+    @Nonnull
+    private final String _clientId;
+    @Nonnull
+    private final String _description;
+    @Nonnull
+    private final Runnable _action;
+    @Nonnull
+    private final List<Operation> _dependents = new ArrayList<>();
+    private int _pendingDependencies;
+    @Nullable
+    private Throwable _failure;
+    private boolean _completed;
+
+    Operation( @Nonnull final String key,
+               @Nonnull final String clientId,
+               @Nonnull final String description,
+               @Nonnull final Runnable action )
+    {
+      _key = key;
+      _clientId = clientId;
+      _description = description;
+      _action = action;
+    }
+  }
+
+  private final int _concurrency;
+  @Nonnull
+  private final Map<String, Operation> _operations = new LinkedHashMap<>();
+  @Nonnull
+  private final Map<String, Collection<String>> _dependencies = new LinkedHashMap<>();
+
+  OperationScheduler( final int concurrency )
+  {
+    assert concurrency > 0;
+    _concurrency = concurrency;
+  }
+
+  /**
+   * Add an operation to the graph.
+   * Dependencies that do not identify an operation in the graph when {@link #run()} is invoked are ignored.
+   */
+  void add( @Nonnull final String key,
+            @Nonnull final String clientId,
+            @Nonnull final String description,
+            @Nonnull final Collection<String> dependencies,
+            @Nonnull final Runnable action )
+  {
+    if ( _operations.containsKey( key ) )
+    {
+      throw new IllegalStateException( "Operation '" + key + "' scheduled multiple times" );
+    }
+    _operations.put( key, new Operation( key, clientId, description, action ) );
+    _dependencies.put( key, dependencies );
+  }
+
+  /**
+   * Run all operations, blocking until they complete or the run is aborted due to a failure.
+   */
+  void run()
+    throws InterruptedException
+  {
+    final Deque<Operation> ready = linkOperations();
+    if ( ready.isEmpty() )
+    {
+      return;
+    }
+
+    final int threadCount = Math.min( _concurrency, _operations.size() );
+    final int poolId = c_poolId.incrementAndGet();
+    final AtomicInteger threadId = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool( threadCount, r -> {
+      final Thread thread = new Thread( r, "converger-" + poolId + "-" + threadId.incrementAndGet() );
+      thread.setDaemon( true );
+      return thread;
+    } );
+    final CompletionService<Operation> completionService = new ExecutorCompletionService<>( executor );
+    final List<Operation> failed = new ArrayList<>();
+    try
+    {
+      int inFlight = 0;
+      while ( !ready.isEmpty() || inFlight > 0 )
+      {
+        while ( failed.isEmpty() && !ready.isEmpty() )
+        {
+          final Operation operation = ready.removeFirst();
+          completionService.submit( () -> perform( operation ) );
+          inFlight++;
+        }
+        if ( 0 == inFlight )
+        {
+          break;
+        }
+        final Operation operation = getResult( completionService );
+        inFlight--;
+        if ( null != operation._failure )
+        {
+          failed.add( operation );
+        }
+        else
+        {
+          operation._completed = true;
+          for ( final Operation dependent : operation._dependents )
+          {
+            if ( 0 == --dependent._pendingDependencies )
+            {
+              ready.addLast( dependent );
+            }
+          }
+        }
+      }
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+
+    if ( !failed.isEmpty() )
+    {
+      throw new IllegalStateException( buildFailureReport( failed ) );
+    }
+  }
+
+  @Nonnull
+  private Operation perform( @Nonnull final Operation operation )
+  {
+    try
+    {
+      operation._action.run();
+    }
+    catch ( final Throwable t )
+    {
+      operation._failure = t;
+    }
+    return operation;
+  }
+
+  @Nonnull
+  private Operation getResult( @Nonnull final CompletionService<Operation> completionService )
+    throws InterruptedException
+  {
+    try
+    {
+      return completionService.take().get();
+    }
+    catch ( final ExecutionException e )
+    {
+      // perform() never throws so this should be unreachable
+      throw new IllegalStateException( "Unexpected failure executing operation", e.getCause() );
+    }
+  }
+
+  /**
+   * Resolve the dependencies between operations and return the operations that are immediately runnable.
+   */
+  @Nonnull
+  private Deque<Operation> linkOperations()
+  {
+    final Deque<Operation> ready = new ArrayDeque<>();
+    for ( final Operation operation : _operations.values() )
+    {
+      for ( final String dependencyKey : _dependencies.get( operation._key ) )
+      {
+        final Operation dependency = _operations.get( dependencyKey );
+        if ( null != dependency && dependency != operation )
+        {
+          dependency._dependents.add( operation );
+          operation._pendingDependencies++;
+        }
+      }
+    }
+    for ( final Operation operation : _operations.values() )
+    {
+      if ( 0 == operation._pendingDependencies )
+      {
+        ready.add( operation );
+      }
+    }
+    detectCycles( ready );
+    return ready;
+  }
+
+  private void detectCycles( @Nonnull final Collection<Operation> ready )
+  {
+    final Map<Operation, Integer> pending = new LinkedHashMap<>();
+    for ( final Operation operation : _operations.values() )
+    {
+      pending.put( operation, operation._pendingDependencies );
+    }
+    final Deque<Operation> queue = new ArrayDeque<>( ready );
+    while ( !queue.isEmpty() )
+    {
+      final Operation operation = queue.removeFirst();
+      pending.remove( operation );
+      for ( final Operation dependent : operation._dependents )
+      {
+        final int count = pending.get( dependent ) - 1;
+        pending.put( dependent, count );
+        if ( 0 == count )
+        {
+          queue.addLast( dependent );
+        }
+      }
+    }
+    if ( !pending.isEmpty() )
+    {
+      final List<String> keys = new ArrayList<>();
+      for ( final Operation operation : pending.keySet() )
+      {
+        keys.add( operation._key );
+      }
+      throw new IllegalStateException( "Circular dependency detected between operations " + keys );
+    }
+  }
+
+  @Nonnull
+  private String buildFailureReport( @Nonnull final List<Operation> failed )
+  {
+    final String lineSeparator = System.getProperty( "line.separator" );
+    final StringBuilder sb = new StringBuilder();
+    sb.append( failed.size() ).append( " client operation(s) failed:" );
+    for ( final Operation operation : failed )
+    {
+      final Throwable failure = operation._failure;
+      assert null != failure;
+      sb.append( lineSeparator )
+        .append( "\t" )
+        .append( operation._description )
+        .append( " of client '" )
+        .append( operation._clientId )
+        .append( "' failed: " )
+        .append( failure );
+    }
+    final List<String> skipped = new ArrayList<>();
+    for ( final Operation operation : _operations.values() )
+    {
+      if ( !operation._completed && null == operation._failure )
+      {
+        skipped.add( operation._description + " of '" + operation._clientId + "'" );
+      }
+    }
+    if ( !skipped.isEmpty() )
+    {
+      sb.append( lineSeparator ).append( skipped.size() ).append( " operation(s) not performed: " ).append( skipped );
+    }
+    return sb.toString();
+  }
+}
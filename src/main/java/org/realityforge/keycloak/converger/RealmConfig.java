@@ -0,0 +1,73 @@
+package org.realityforge.keycloak.converger;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The settings used to converge a single realm.
+ */
+final class RealmConfig
+{
+  @Nullable
+  private final String _target;
+  @Nonnull
+  private final String _realmName;
+  @Nonnull
+  private final Map<String, String> _envs;
+  @Nonnull
+  private final File _secretsDir;
+
+  /**
+   * @param target the name of the target server of the realm or null when converging a single server.
+   */
+  RealmConfig( @Nullable final String target,
+               @Nonnull final String realmName,
+               @Nonnull final Map<String, String> envs,
+               @Nonnull final File secretsDir )
+  {
+    _target = target;
+    _realmName = realmName;
+    _envs = Collections.unmodifiableMap( envs );
+    _secretsDir = secretsDir;
+  }
+
+  @Nullable
+  String getTarget()
+  {
+    return _target;
+  }
+
+  @Nonnull
+  String getRealmName()
+  {
+    return _realmName;
+  }
+
+  /**
+   * Return the key that identifies the realm in the state file and in messages.
+   * The key is qualified by the target so that realms with the same name on different servers are distinct.
+   */
+  @Nonnull
+  String getKey()
+  {
+    return null == _target ? _realmName : _target + "/" + _realmName;
+  }
+
+  /**
+   * Return the settings that are replaced in client configurations for this realm.
+   */
+  @Nonnull
+  Map<String, String> getEnvs()
+  {
+    return _envs;
+  }
+
+  @Nonnull
+  File getSecretsDir()
+  {
+    return _secretsDir;
+  }
+}
@@ -0,0 +1,295 @@
+package org.realityforge.keycloak.converger;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+/**
+ * Executes requests against the admin API, retrying transient failures.
+ *
+ * <p>A request is retried if the server responds with a 5xx or 429 status or the connection fails. Retries are
+ * delayed using exponential backoff with jitter, or by the delay requested via a Retry-After header.
+ * Requests that are not idempotent are passed the attempt number so that they can check whether an earlier
+ * attempt succeeded before repeating the request. A request rejected as unauthorized is repeated once after
+ * invoking the unauthorized handler so that an expired or revoked admin token can be replaced.</p>
+ *
+ * <p>Requests are optionally rate limited by a token bucket and the number of concurrent requests is adjusted
+ * using additive-increase/multiplicative-decrease. The limit shrinks when requests fail with a retryable error
+ * or the latency of requests climbs well above the average latency and grows slowly as requests succeed.</p>
+ */
+final class RequestExecutor
+{
+  /**
+   * A request to the server.
+   */
+  @FunctionalInterface
+  interface Request<T>
+  {
+    /**
+     * Perform the request.
+     *
+     * @param attempt the attempt number starting at 1.
+     */
+    T perform( int attempt );
+  }
+
+  private static final long INITIAL_BACKOFF_MILLIS = 200;
+  private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis( 10 );
+  /**
+   * The number of samples before latency is used to detect congestion.
+   */
+  private static final int LATENCY_WARMUP_SAMPLES = 10;
+  /**
+   * A request is considered congested if it takes this many times longer than the average latency.
+   */
+  private static final double CONGESTED_LATENCY_FACTOR = 3.0;
+  /**
+   * A request is only considered congested if it takes at least this much longer than the average latency.
+   * This avoids treating normal variance in very fast requests as congestion.
+   */
+  private static final long MIN_CONGESTED_LATENCY_INCREASE = TimeUnit.MILLISECONDS.toNanos( 250 );
+  private static final double LATENCY_SMOOTHING = 0.1;
+  private final int _maxRetries;
+  private final int _maxConcurrency;
+  private final double _rateLimit;
+  @Nonnull
+  private final Runnable _unauthorizedHandler;
+  @Nonnull
+  private final Consumer<String> _logger;
+  private double _limit;
+  private int _inFlight;
+  private double _averageLatency;
+  private int _latencySamples;
+  private long _lastDecreaseTime;
+  private double _tokens;
+  private long _lastRefillTime;
+
+  /**
+   * @param maxRetries          the maximum number of times a request is retried.
+   * @param maxConcurrency      the maximum number of concurrent requests.
+   * @param rateLimit           the maximum number of requests per second or 0 for no limit.
+   * @param unauthorizedHandler invoked to discard the admin token when a request is rejected as unauthorized.
+   * @param logger              the consumer of messages describing retries and changes to the concurrency limit.
+   */
+  RequestExecutor( final int maxRetries,
+                   final int maxConcurrency,
+                   final double rateLimit,
+                   @Nonnull final Runnable unauthorizedHandler,
+                   @Nonnull final Consumer<String> logger )
+  {
+    assert maxRetries >= 0;
+    assert maxConcurrency > 0;
+    assert rateLimit >= 0;
+    _maxRetries = maxRetries;
+    _maxConcurrency = maxConcurrency;
+    _rateLimit = rateLimit;
+    _unauthorizedHandler = unauthorizedHandler;
+    _logger = logger;
+    _limit = maxConcurrency;
+    _tokens = Math.max( 1, rateLimit );
+    _lastRefillTime = System.nanoTime();
+  }
+
+  /**
+   * Perform the request, retrying if it fails with a transient error.
+   */
+  <T> T execute( @Nonnull final String description, @Nonnull final Request<T> request )
+  {
+    int attempt = 1;
+    boolean reauthenticated = false;
+    while ( true )
+    {
+      acquireRateToken();
+      acquireConcurrencyPermit();
+      final long start = System.nanoTime();
+      boolean released = false;
+      try
+      {
+        final T result = request.perform( attempt );
+        releaseConcurrencyPermit( System.nanoTime() - start, false );
+        released = true;
+        return result;
+      }
+      catch ( final RuntimeException e )
+      {
+        final boolean retryable = isRetryable( e );
+        releaseConcurrencyPermit( System.nanoTime() - start, retryable );
+        released = true;
+        if ( e instanceof NotAuthorizedException && !reauthenticated )
+        {
+          reauthenticated = true;
+          _logger.accept( description + " was rejected as unauthorized. Retrying with a new admin token." );
+          _unauthorizedHandler.run();
+          attempt++;
+          continue;
+        }
+        if ( !retryable || attempt > _maxRetries )
+        {
+          throw e;
+        }
+        final long delay = retryDelay( e, attempt );
+        _logger.accept( description + " failed (attempt " + attempt + " of " + ( _maxRetries + 1 ) + "). " +
+                        "Retrying in " + delay + "ms. Error: " + e );
+        sleep( delay );
+        attempt++;
+      }
+      finally
+      {
+        if ( !released )
+        {
+          releaseConcurrencyPermit( System.nanoTime() - start, false );
+        }
+      }
+    }
+  }
+
+  /**
+   * Return true if the failure is transient and the request may succeed if repeated.
+   */
+  static boolean isRetryable( @Nonnull final Throwable throwable )
+  {
+    if ( throwable instanceof WebApplicationException )
+    {
+      final Response response = ( (WebApplicationException) throwable ).getResponse();
+      final int status = null != response ? response.getStatus() : 0;
+      return 429 == status || ( status >= 500 && status < 600 );
+    }
+    else if ( throwable instanceof ProcessingException )
+    {
+      for ( Throwable cause = throwable.getCause(); null != cause; cause = cause.getCause() )
+      {
+        if ( cause instanceof IOException )
+        {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static long retryDelay( @Nonnull final RuntimeException e, final int attempt )
+  {
+    final Long retryAfter = getRetryAfter( e );
+    if ( null != retryAfter )
+    {
+      return Math.min( retryAfter, MAX_BACKOFF_MILLIS );
+    }
+    final long backoff = Math.min( MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min( attempt - 1, 16 ) );
+    // Jitter spreads the retries of concurrent requests so that they do not arrive at the server together
+    return ThreadLocalRandom.current().nextLong( backoff / 2, backoff + 1 );
+  }
+
+  @Nullable
+  private static Long getRetryAfter( @Nonnull final RuntimeException e )
+  {
+    if ( e instanceof WebApplicationException )
+    {
+      final Response response = ( (WebApplicationException) e ).getResponse();
+      final String value = null != response ? response.getHeaderString( "Retry-After" ) : null;
+      if ( null != value )
+      {
+        try
+        {
+          return TimeUnit.SECONDS.toMillis( Long.parseLong( value.trim() ) );
+        }
+        catch ( final NumberFormatException ignored )
+        {
+          // Http dates are not supported so fall back to the exponential backoff
+        }
+      }
+    }
+    return null;
+  }
+
+  private void acquireRateToken()
+  {
+    if ( _rateLimit > 0 )
+    {
+      final long delay;
+      synchronized ( this )
+      {
+        final long now = System.nanoTime();
+        final double capacity = Math.max( 1, _rateLimit );
+        _tokens = Math.min( capacity, _tokens + ( now - _lastRefillTime ) * _rateLimit / TimeUnit.SECONDS.toNanos( 1 ) );
+        _lastRefillTime = now;
+        // Tokens may go negative which reserves a future token for this request
+        _tokens -= 1;
+        delay = _tokens >= 0 ? 0 : (long) Math.ceil( -_tokens * 1000 / _rateLimit );
+      }
+      sleep( delay );
+    }
+  }
+
+  private synchronized void acquireConcurrencyPermit()
+  {
+    while ( _inFlight >= (int) _limit )
+    {
+      try
+      {
+        wait();
+      }
+      catch ( final InterruptedException ie )
+      {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException( "Interrupted waiting to perform request", ie );
+      }
+    }
+    _inFlight++;
+  }
+
+  private synchronized void releaseConcurrencyPermit( final long latencyNanos, final boolean failed )
+  {
+    _inFlight--;
+    final boolean slow =
+      _latencySamples >= LATENCY_WARMUP_SAMPLES &&
+      latencyNanos > Math.max( _averageLatency * CONGESTED_LATENCY_FACTOR,
+                               _averageLatency + MIN_CONGESTED_LATENCY_INCREASE );
+    if ( !failed )
+    {
+      _averageLatency =
+        0 == _latencySamples ? latencyNanos : _averageLatency + LATENCY_SMOOTHING * ( latencyNanos - _averageLatency );
+      _latencySamples++;
+    }
+    final long now = System.nanoTime();
+    if ( failed || slow )
+    {
+      // Only decrease once per average request duration so a burst of failures from requests that were
+      // all in flight at the same time does not collapse the limit
+      if ( now - _lastDecreaseTime > _averageLatency && _limit > 1 )
+      {
+        _limit = Math.max( 1, _limit / 2 );
+        _lastDecreaseTime = now;
+        _logger.accept( "Reducing request concurrency to " + (int) _limit +
+                        ( failed ? " after a retryable failure" : " after a slow response" ) );
+      }
+    }
+    else if ( _limit < _maxConcurrency )
+    {
+      _limit = Math.min( _maxConcurrency, _limit + 1 / _limit );
+    }
+    notifyAll();
+  }
+
+  private static void sleep( final long millis )
+  {
+    if ( millis > 0 )
+    {
+      try
+      {
+        Thread.sleep( millis );
+      }
+      catch ( final InterruptedException ie )
+      {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException( "Interrupted waiting to perform request", ie );
+      }
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package org.realityforge.keycloak.converger;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Stores the client secrets for a realm.
+ * Secrets are either written to a file per client in the secrets directory or, if a bundle is specified, to a
+ * single json or properties file. Files are written atomically and only when their content changes so that the
+ * modification time of unchanged secrets is preserved.
+ */
+final class SecretStore
+{
+  @Nonnull
+  private final Path _dir;
+  @Nullable
+  private final Path _bundle;
+  /**
+   * The secrets recorded in the bundle. Lazily loaded from the existing bundle file.
+   */
+  @Nullable
+  private Map<String, String> _bundleSecrets;
+  private boolean _bundleChanged;
+
+  /**
+   * @param dir    the secrets directory.
+   * @param bundle the name of the bundle file relative to the secrets directory or null to write a file per client.
+   */
+  SecretStore( @Nonnull final Path dir, @Nullable final String bundle )
+  {
+    _dir = dir;
+    _bundle = null == bundle ? null : dir.resolve( bundle );
+  }
+
+  /**
+   * Return true if a secret has been stored for the client.
+   */
+  synchronized boolean contains( @Nonnull final String clientId )
+    throws IOException
+  {
+    return null == _bundle ? Files.exists( _dir.resolve( clientId ) ) : getBundleSecrets().containsKey( clientId );
+  }
+
+  /**
+   * Store the secret for the client.
+   *
+   * @return true if the stored secret changed.
+   */
+  synchronized boolean put( @Nonnull final String clientId, @Nonnull final String secret )
+    throws IOException
+  {
+    if ( null == _bundle )
+    {
+      return writeIfChanged( _dir.resolve( clientId ), secret.getBytes( StandardCharsets.US_ASCII ) );
+    }
+    else
+    {
+      final boolean changed = !secret.equals( getBundleSecrets().put( clientId, secret ) );
+      _bundleChanged |= changed;
+      return changed;
+    }
+  }
+
+  /**
+   * Write the bundle if any secret has changed. Secrets of clients that are no longer present are removed.
+   * This is a no-op if secrets are written to a file per client.
+   *
+   * @param retain the predicate that returns true for the clientIds of the clients present in the realm.
+   */
+  synchronized void flush( @Nonnull final Predicate<String> retain )
+    throws IOException
+  {
+    if ( null != _bundle )
+    {
+      final Map<String, String> secrets = getBundleSecrets();
+      _bundleChanged |= secrets.keySet().removeIf( retain.negate() );
+      if ( _bundleChanged )
+      {
+        writeIfChanged( _bundle, encodeBundle( _bundle, secrets ) );
+        _bundleChanged = false;
+      }
+    }
+  }
+
+  @Nonnull
+  private Map<String, String> getBundleSecrets()
+    throws IOException
+  {
+    if ( null == _bundleSecrets )
+    {
+      assert null != _bundle;
+      _bundleSecrets = new ConcurrentHashMap<>();
+      if ( Files.exists( _bundle ) )
+      {
+        if ( isProperties( _bundle ) )
+        {
+          final Properties properties = new Properties();
+          try ( final Reader reader = Files.newBufferedReader( _bundle, StandardCharsets.ISO_8859_1 ) )
+          {
+            properties.load( reader );
+          }
+          for ( final String name : properties.stringPropertyNames() )
+          {
+            _bundleSecrets.put( name, properties.getProperty( name ) );
+          }
+        }
+        else
+        {
+          final Map<?, ?> secrets = JsonSerialization.readValue( Files.readAllBytes( _bundle ), Map.class );
+          for ( final Map.Entry<?, ?> entry : secrets.entrySet() )
+          {
+            _bundleSecrets.put( String.valueOf( entry.getKey() ), String.valueOf( entry.getValue() ) );
+          }
+        }
+      }
+    }
+    return _bundleSecrets;
+  }
+
+  @Nonnull
+  private static byte[] encodeBundle( @Nonnull final Path bundle, @Nonnull final Map<String, String> secrets )
+    throws IOException
+  {
+    final Map<String, String> sorted = new TreeMap<>( secrets );
+    if ( isProperties( bundle ) )
+    {
+      // Properties.store emits a timestamp comment and an arbitrary order so each entry is encoded separately
+      final StringBuilder sb = new StringBuilder();
+      for ( final Map.Entry<String, String> entry : sorted.entrySet() )
+      {
+        final Properties properties = new Properties();
+        properties.setProperty( entry.getKey(), entry.getValue() );
+        final StringWriter writer = new StringWriter();
+        properties.store( writer, null );
+        for ( final String line : writer.toString().split( "\\R" ) )
+        {
+          if ( !line.startsWith( "#" ) && !line.isEmpty() )
+          {
+            sb.append( line ).append( '\n' );
+          }
+        }
+      }
+      return sb.toString().getBytes( StandardCharsets.ISO_8859_1 );
+    }
+    else
+    {
+      return JsonSerialization.writeValueAsPrettyString( sorted ).getBytes( StandardCharsets.UTF_8 );
+    }
+  }
+
+  private static boolean isProperties( @Nonnull final Path bundle )
+  {
+    return bundle.getFileName().toString().endsWith( ".properties" );
+  }
+
+  /**
+   * Atomically replace the content of the file unless the file already has the specified content.
+   *
+   * @return true if the file was written.
+   */
+  private static boolean writeIfChanged( @Nonnull final Path file, @Nonnull final byte[] content )
+    throws IOException
+  {
+    if ( Files.exists( file ) && Arrays.equals( Files.readAllBytes( file ), content ) )
+    {
+      return false;
+    }
+    final Path dir = file.toAbsolutePath().getParent();
+    Files.createDirectories( dir );
+    // The temporary file is not created via Files.createTempFile so that it has the default permissions
+    final Path tempFile = dir.resolve( "." + file.getFileName() + ".tmp" );
+    try
+    {
+      Files.write( tempFile, content );
+      Files.move( tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+    finally
+    {
+      Files.deleteIfExists( tempFile );
+    }
+    return true;
+  }
+}
@@ -0,0 +1,266 @@
+package org.realityforge.keycloak.converger;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.keycloak.representations.idm.ClientRepresentation;
+
+/**
+ * A record of the clients produced by the last successful convergence of each realm.
+ * For every client the manifest records a hash of the desired configuration and a hash of the representation
+ * that the server returned after convergence. If neither hash has changed on a subsequent run then the client
+ * can be skipped entirely.
+ */
+final class StateManifest
+{
+  /**
+   * The hashes recorded for a single client.
+   */
+  static final class Entry
+  {
+    @Nullable
+    private final String _configHash;
+    @Nonnull
+    private final String _serverHash;
+
+    Entry( @Nullable final String configHash, @Nonnull final String serverHash )
+    {
+      _configHash = configHash;
+      _serverHash = serverHash;
+    }
+
+    /**
+     * Return the hash of the desired configuration or null if the client is not managed by the converger.
+     */
+    @Nullable
+    String getConfigHash()
+    {
+      return _configHash;
+    }
+
+    @Nonnull
+    String getServerHash()
+    {
+      return _serverHash;
+    }
+  }
+
+  @Nonnull
+  private static final String CONFIG_KEY = "config";
+  @Nonnull
+  private static final String SERVER_KEY = "server";
+  /**
+   * Mapper that produces a canonical form of representations so that equivalent representations hash identically.
+   */
+  @Nonnull
+  private static final ObjectMapper c_mapper =
+    new ObjectMapper()
+      .setSerializationInclusion( JsonInclude.Include.NON_NULL )
+      .configure( MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true )
+      .configure( SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true )
+      .configure( SerializationFeature.INDENT_OUTPUT, true );
+  @Nonnull
+  private final Map<String, Map<String, Entry>> _realms = new ConcurrentHashMap<>();
+
+  /**
+   * Load the manifest from the specified file. An empty manifest is returned if the file does not exist.
+   */
+  @Nonnull
+  static StateManifest load( @Nonnull final Path file )
+    throws IOException
+  {
+    final StateManifest manifest = new StateManifest();
+    if ( Files.exists( file ) )
+    {
+      final Map<String, Map<String, Map<String, String>>> realms =
+        c_mapper.readValue( file.toFile(), new TypeReference<Map<String, Map<String, Map<String, String>>>>()
+        {
+        } );
+      for ( final Map.Entry<String, Map<String, Map<String, String>>> realm : realms.entrySet() )
+      {
+        final Map<String, Entry> entries = new TreeMap<>();
+        for ( final Map.Entry<String, Map<String, String>> client : realm.getValue().entrySet() )
+        {
+          final String serverHash = client.getValue().get( SERVER_KEY );
+          if ( null != serverHash )
+          {
+            entries.put( client.getKey(), new Entry( client.getValue().get( CONFIG_KEY ), serverHash ) );
+          }
+        }
+        manifest._realms.put( realm.getKey(), entries );
+      }
+    }
+    return manifest;
+  }
+
+  /**
+   * Return the entries recorded for the realm keyed by clientId.
+   */
+  @Nonnull
+  Map<String, Entry> getRealm( @Nonnull final String realmName )
+  {
+    return Collections.unmodifiableMap( _realms.getOrDefault( realmName, Collections.emptyMap() ) );
+  }
+
+  /**
+   * Replace the entries recorded for the realm.
+   */
+  void setRealm( @Nonnull final String realmName, @Nonnull final Map<String, Entry> entries )
+  {
+    _realms.put( realmName, new TreeMap<>( entries ) );
+  }
+
+  /**
+   * Replace the entries recorded for the specified clients of the realm, leaving the entries of other clients.
+   *
+   * @param clientIds the clientIds of the clients whose entries are replaced.
+   * @param entries   the new entries of the clients keyed by clientId.
+   */
+  void updateClients( @Nonnull final String realmName,
+                      @Nonnull final Set<String> clientIds,
+                      @Nonnull final Map<String, Entry> entries )
+  {
+    _realms.compute( realmName, ( name, existing ) -> {
+      final Map<String, Entry> updated = null == existing ? new TreeMap<>() : new TreeMap<>( existing );
+      updated.keySet().removeAll( clientIds );
+      updated.putAll( entries );
+      return updated;
+    } );
+  }
+
+  /**
+   * Remove the entries for the realm so that the next run converges every client in the realm.
+   */
+  void removeRealm( @Nonnull final String realmName )
+  {
+    _realms.remove( realmName );
+  }
+
+  /**
+   * Atomically write the manifest to the specified file.
+   */
+  void save( @Nonnull final Path file )
+    throws IOException
+  {
+    final Map<String, Map<String, Map<String, String>>> realms = new TreeMap<>();
+    for ( final Map.Entry<String, Map<String, Entry>> realm : _realms.entrySet() )
+    {
+      final Map<String, Map<String, String>> clients = new TreeMap<>();
+      for ( final Map.Entry<String, Entry> client : realm.getValue().entrySet() )
+      {
+        final Map<String, String> hashes = new TreeMap<>();
+        final Entry entry = client.getValue();
+        if ( null != entry._configHash )
+        {
+          hashes.put( CONFIG_KEY, entry._configHash );
+        }
+        hashes.put( SERVER_KEY, entry._serverHash );
+        clients.put( client.getKey(), hashes );
+      }
+      realms.put( realm.getKey(), clients );
+    }
+    final Path dir = file.toAbsolutePath().getParent();
+    Files.createDirectories( dir );
+    final Path tempFile = Files.createTempFile( dir, file.getFileName().toString(), ".tmp" );
+    try
+    {
+      c_mapper.writeValue( tempFile.toFile(), realms );
+      Files.move( tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+    finally
+    {
+      Files.deleteIfExists( tempFile );
+    }
+  }
+
+  /**
+   * Return the hash of the desired client configuration.
+   * Ids are excluded as they may be regenerated each time the configuration is rendered.
+   */
+  @Nonnull
+  static String hashConfig( @Nonnull final ClientRepresentation client )
+  {
+    final JsonNode node = c_mapper.valueToTree( client );
+    removeIds( node );
+    return hash( node );
+  }
+
+  /**
+   * Return the hash of the client representation returned by the server.
+   * The access field is excluded as it describes the permissions of the admin user rather than the client.
+   */
+  @Nonnull
+  static String hashServer( @Nonnull final ClientRepresentation client )
+  {
+    final JsonNode node = c_mapper.valueToTree( client );
+    ( (ObjectNode) node ).remove( "access" );
+    return hash( node );
+  }
+
+  private static void removeIds( @Nonnull final JsonNode node )
+  {
+    if ( node.isObject() )
+    {
+      ( (ObjectNode) node ).remove( "id" );
+    }
+    node.forEach( StateManifest::removeIds );
+  }
+
+  @Nonnull
+  private static String hash( @Nonnull final JsonNode node )
+  {
+    final byte[] data;
+    try
+    {
+      // Re-serialize via a tree converted to objects so that property ordering is canonical
+      data = c_mapper.writeValueAsString( c_mapper.treeToValue( node, Object.class ) )
+        .getBytes( StandardCharsets.UTF_8 );
+    }
+    catch ( final IOException ioe )
+    {
+      throw new IllegalStateException( "Unable to serialize client representation", ioe );
+    }
+    return sha256( data );
+  }
+
+  /**
+   * Return the hex encoded SHA-256 digest of the data.
+   */
+  @Nonnull
+  static String sha256( @Nonnull final byte[] data )
+  {
+    final MessageDigest digest;
+    try
+    {
+      digest = MessageDigest.getInstance( "SHA-256" );
+    }
+    catch ( final NoSuchAlgorithmException e )
+    {
+      throw new IllegalStateException( "SHA-256 digest unavailable", e );
+    }
+    final StringBuilder sb = new StringBuilder();
+    for ( final byte b : digest.digest( data ) )
+    {
+      sb.append( String.format( "%02x", b ) );
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,231 @@
+package org.realityforge.keycloak.converger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * The settings used to converge the realms of one of several keycloak servers.
+ *
+ * <p>Targets are read from a json file containing a <code>targets</code> array. Each target has a unique
+ * <code>name</code> and a <code>serverUrl</code> and may specify <code>adminRealm</code>,
+ * <code>adminClient</code>, <code>adminUsername</code>, <code>adminPassword</code> or
+ * <code>adminPasswordEnv</code> (the environment variable containing the password), <code>realms</code>,
+ * <code>envs</code> and <code>secretsDir</code>. Unspecified settings are taken from the command line.</p>
+ */
+final class TargetConfig
+{
+  @Nonnull
+  private static final Pattern NAME_PATTERN = Pattern.compile( "[A-Za-z0-9_.-]+" );
+  @Nonnull
+  private final String _name;
+  @Nonnull
+  private final String _serverUrl;
+  @Nonnull
+  private final String _adminRealm;
+  @Nonnull
+  private final String _adminClient;
+  @Nonnull
+  private final String _adminUsername;
+  @Nonnull
+  private final String _adminPassword;
+  @Nonnull
+  private final List<String> _realmNames;
+  @Nonnull
+  private final Map<String, String> _envs;
+  @Nonnull
+  private final File _secretsDir;
+
+  TargetConfig( @Nonnull final String name,
+                @Nonnull final String serverUrl,
+                @Nonnull final String adminRealm,
+                @Nonnull final String adminClient,
+                @Nonnull final String adminUsername,
+                @Nonnull final String adminPassword,
+                @Nonnull final List<String> realmNames,
+                @Nonnull final Map<String, String> envs,
+                @Nonnull final File secretsDir )
+  {
+    _name = name;
+    _serverUrl = serverUrl;
+    _adminRealm = adminRealm;
+    _adminClient = adminClient;
+    _adminUsername = adminUsername;
+    _adminPassword = adminPassword;
+    _realmNames = Collections.unmodifiableList( realmNames );
+    _envs = Collections.unmodifiableMap( envs );
+    _secretsDir = secretsDir;
+  }
+
+  /**
+   * Read the targets from the specified file.
+   *
+   * @param defaults the settings used when a target does not specify a setting. The name and server url of
+   *                 the defaults are ignored and the secrets directory of a target defaults to a directory
+   *                 named after the target within the default secrets directory.
+   * @throws IllegalStateException if a target is invalid.
+   */
+  @Nonnull
+  static List<TargetConfig> load( @Nonnull final Path file, @Nonnull final TargetConfig defaults )
+    throws IOException
+  {
+    final JsonNode root = JsonSerialization.mapper.readTree( file.toFile() );
+    final JsonNode targets = null == root ? null : root.get( "targets" );
+    if ( null == targets || !targets.isArray() || 0 == targets.size() )
+    {
+      throw new IllegalStateException( "Targets file " + file + " does not contain a targets array" );
+    }
+    final List<TargetConfig> results = new ArrayList<>();
+    final Set<String> names = new HashSet<>();
+    for ( final JsonNode target : targets )
+    {
+      final String name = getText( target, "name" );
+      if ( null == name || !NAME_PATTERN.matcher( name ).matches() )
+      {
+        throw new IllegalStateException( "Target in " + file + " has a missing or invalid name " + name );
+      }
+      if ( !names.add( name ) )
+      {
+        throw new IllegalStateException( "Target " + name + " is specified multiple times in " + file );
+      }
+      final String serverUrl = getText( target, "serverUrl" );
+      if ( null == serverUrl )
+      {
+        throw new IllegalStateException( "Target " + name + " does not specify a serverUrl" );
+      }
+      final String passwordEnv = getText( target, "adminPasswordEnv" );
+      final String password =
+        null != passwordEnv ?
+        System.getenv( passwordEnv ) :
+        getText( target, "adminPassword", defaults._adminPassword );
+      if ( null == password || password.isEmpty() )
+      {
+        throw new IllegalStateException( "Target " + name + " does not specify an admin password" );
+      }
+
+      final List<String> realmNames = new ArrayList<>();
+      target.path( "realms" ).forEach( realm -> realmNames.add( realm.asText() ) );
+      if ( realmNames.isEmpty() )
+      {
+        realmNames.addAll( defaults._realmNames );
+      }
+      if ( realmNames.isEmpty() )
+      {
+        throw new IllegalStateException( "Target " + name + " does not specify any realms" );
+      }
+
+      final Map<String, String> envs = new HashMap<>( defaults._envs );
+      final Iterator<Map.Entry<String, JsonNode>> fields = target.path( "envs" ).fields();
+      while ( fields.hasNext() )
+      {
+        final Map.Entry<String, JsonNode> field = fields.next();
+        envs.put( field.getKey(), field.getValue().asText() );
+      }
+
+      final String secretsDir = getText( target, "secretsDir" );
+      results.add( new TargetConfig( name,
+                                     serverUrl,
+                                     getText( target, "adminRealm", defaults._adminRealm ),
+                                     getText( target, "adminClient", defaults._adminClient ),
+                                     getText( target, "adminUsername", defaults._adminUsername ),
+                                     password,
+                                     realmNames,
+                                     envs,
+                                     null != secretsDir ?
+                                     new File( secretsDir ) :
+                                     new File( defaults._secretsDir, name ) ) );
+    }
+    return results;
+  }
+
+  @Nullable
+  private static String getText( @Nonnull final JsonNode node, @Nonnull final String field )
+  {
+    final JsonNode value = node.get( field );
+    return null == value || value.isNull() ? null : value.asText();
+  }
+
+  @Nonnull
+  private static String getText( @Nonnull final JsonNode node,
+                                 @Nonnull final String field,
+                                 @Nonnull final String defaultValue )
+  {
+    final String value = getText( node, field );
+    return null == value ? defaultValue : value;
+  }
+
+  @Nonnull
+  String getName()
+  {
+    return _name;
+  }
+
+  @Nonnull
+  String getServerUrl()
+  {
+    return _serverUrl;
+  }
+
+  @Nonnull
+  String getAdminRealm()
+  {
+    return _adminRealm;
+  }
+
+  @Nonnull
+  String getAdminClient()
+  {
+    return _adminClient;
+  }
+
+  @Nonnull
+  String getAdminUsername()
+  {
+    return _adminUsername;
+  }
+
+  @Nonnull
+  String getAdminPassword()
+  {
+    return _adminPassword;
+  }
+
+  @Nonnull
+  List<String> getRealmNames()
+  {
+    return _realmNames;
+  }
+
+  /**
+   * Return the settings that are replaced in client configurations for every realm of the target.
+   * These override the global settings but are overridden by the settings of a realm.
+   */
+  @Nonnull
+  Map<String, String> getEnvs()
+  {
+    return _envs;
+  }
+
+  /**
+   * Return the directory that secrets are downloaded to. Each realm of a target that converges multiple
+   * realms downloads secrets to a directory named after the realm within this directory.
+   */
+  @Nonnull
+  File getSecretsDir()
+  {
+    return _secretsDir;
+  }
+}
@@ -0,0 +1,453 @@
+package org.realityforge.keycloak.converger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.UnaryOperator;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A compiled client configuration template.
+ *
+ * <p>The template source is tokenized once and can then be rendered many times. The template language supports:</p>
+ * <ul>
+ * <li><code>{{NAME}}</code> which is replaced by the value of the setting named NAME.</li>
+ * <li><code>{{NAME:-DEFAULT}}</code> which is replaced by the value of the setting named NAME or DEFAULT if
+ * the setting is not specified.</li>
+ * <li><code>\{{</code> which is replaced by a literal <code>{{</code>.</li>
+ * </ul>
+ * <p>Every UUID in the rendered output, whether it appears in the template or in a substituted value, is
+ * passed through a replacement function so that ids are not shared with other clients in the database.</p>
+ */
+final class Template
+{
+  /**
+   * The key of the clientId field, including quotes, located in the template source prior to rendering.
+   */
+  @Nonnull
+  private static final String CLIENT_ID_KEY = "\"clientId\"";
+  @Nonnull
+  private static final String VARIABLE_START = "{{";
+  @Nonnull
+  private static final String VARIABLE_END = "}}";
+  @Nonnull
+  private static final String ESCAPED_VARIABLE_START = "\\{{";
+  @Nonnull
+  private static final String DEFAULT_SEPARATOR = ":-";
+  private static final int UUID_LENGTH = 36;
+
+  private static final int LITERAL = 0;
+  private static final int VARIABLE = 1;
+  private static final int UUID = 2;
+
+  /**
+   * The kind of each segment. One of {@link #LITERAL}, {@link #VARIABLE} or {@link #UUID}.
+   */
+  @Nonnull
+  private final int[] _kinds;
+  /**
+   * The literal text, the variable name or the original UUID depending upon the kind of segment.
+   */
+  @Nonnull
+  private final String[] _values;
+  /**
+   * The default value for variable segments, if any.
+   */
+  @Nonnull
+  private final String[] _defaults;
+  private final int _variableCount;
+  private final int _literalLength;
+  @Nullable
+  private final Template _clientIdTemplate;
+
+  private Template( @Nonnull final List<Integer> kinds,
+                    @Nonnull final List<String> values,
+                    @Nonnull final List<String> defaults,
+                    @Nullable final Template clientIdTemplate )
+  {
+    final int size = kinds.size();
+    _kinds = new int[ size ];
+    _values = values.toArray( new String[ 0 ] );
+    _defaults = defaults.toArray( new String[ 0 ] );
+    int variableCount = 0;
+    int literalLength = 0;
+    for ( int i = 0; i < size; i++ )
+    {
+      _kinds[ i ] = kinds.get( i );
+      if ( VARIABLE == _kinds[ i ] )
+      {
+        variableCount++;
+      }
+      else
+      {
+        literalLength += _values[ i ].length();
+      }
+    }
+    _variableCount = variableCount;
+    _literalLength = literalLength;
+    _clientIdTemplate = clientIdTemplate;
+  }
+
+  /**
+   * Compile the template source.
+   *
+   * @throws IllegalStateException if the template is malformed.
+   */
+  @Nonnull
+  static Template compile( @Nonnull final String source )
+  {
+    final String clientId = findClientId( source );
+    return compile( source, null == clientId ? null : compile( clientId, null ) );
+  }
+
+  /**
+   * Return the source of the string value of the clientId field of the top-level object.
+   * Fields of nested objects (i.e. the authorization settings) are ignored. Returns null if the top-level object
+   * does not have exactly one clientId field with a string value or the structure of the source is unbalanced.
+   */
+  @Nullable
+  static String findClientId( @Nonnull final String source )
+  {
+    final int length = source.length();
+    String clientId = null;
+    boolean found = false;
+    int depth = 0;
+    int index = 0;
+    while ( index < length )
+    {
+      final char ch = source.charAt( index );
+      if ( source.startsWith( VARIABLE_START, index ) )
+      {
+        // Variables outside strings (i.e. numeric or boolean values) contain no structure
+        final int end = source.indexOf( VARIABLE_END, index + VARIABLE_START.length() );
+        if ( -1 == end )
+        {
+          return null;
+        }
+        index = end + VARIABLE_END.length();
+      }
+      else if ( '"' == ch )
+      {
+        final int end = endOfString( source, index );
+        if ( -1 == end )
+        {
+          return null;
+        }
+        final int next = skipWhitespace( source, end + 1 );
+        if ( 1 == depth &&
+             end + 1 - index == CLIENT_ID_KEY.length() &&
+             source.startsWith( CLIENT_ID_KEY, index ) &&
+             next < length &&
+             ':' == source.charAt( next ) )
+        {
+          if ( found )
+          {
+            return null;
+          }
+          found = true;
+          final int valueStart = skipWhitespace( source, next + 1 );
+          if ( valueStart < length && '"' == source.charAt( valueStart ) )
+          {
+            final int valueEnd = endOfString( source, valueStart );
+            if ( -1 == valueEnd )
+            {
+              return null;
+            }
+            clientId = source.substring( valueStart + 1, valueEnd );
+            index = valueEnd + 1;
+            continue;
+          }
+        }
+        index = end + 1;
+      }
+      else
+      {
+        if ( '{' == ch || '[' == ch )
+        {
+          depth++;
+        }
+        else if ( '}' == ch || ']' == ch )
+        {
+          depth--;
+        }
+        index++;
+      }
+    }
+    return 0 == depth ? clientId : null;
+  }
+
+  /**
+   * Return the index of the quote that terminates the string starting at the specified index or -1 if the
+   * string is unterminated. Variables within the string are skipped.
+   */
+  private static int endOfString( @Nonnull final String source, final int start )
+  {
+    final int length = source.length();
+    int index = start + 1;
+    while ( index < length )
+    {
+      final char ch = source.charAt( index );
+      if ( '\\' == ch )
+      {
+        index += 2;
+      }
+      else if ( '"' == ch )
+      {
+        return index;
+      }
+      else if ( source.startsWith( VARIABLE_START, index ) )
+      {
+        final int end = source.indexOf( VARIABLE_END, index + VARIABLE_START.length() );
+        if ( -1 == end )
+        {
+          return -1;
+        }
+        index = end + VARIABLE_END.length();
+      }
+      else
+      {
+        index++;
+      }
+    }
+    return -1;
+  }
+
+  private static int skipWhitespace( @Nonnull final String source, final int start )
+  {
+    int index = start;
+    while ( index < source.length() && Character.isWhitespace( source.charAt( index ) ) )
+    {
+      index++;
+    }
+    return index;
+  }
+
+  @Nonnull
+  private static Template compile( @Nonnull final String source, @Nullable final Template clientIdTemplate )
+  {
+    final List<Integer> kinds = new ArrayList<>();
+    final List<String> values = new ArrayList<>();
+    final List<String> defaults = new ArrayList<>();
+    final StringBuilder literal = new StringBuilder();
+
+    final int length = source.length();
+    int index = 0;
+    while ( index < length )
+    {
+      if ( source.startsWith( ESCAPED_VARIABLE_START, index ) )
+      {
+        literal.append( VARIABLE_START );
+        index += ESCAPED_VARIABLE_START.length();
+      }
+      else if ( source.startsWith( VARIABLE_START, index ) )
+      {
+        final int end = source.indexOf( VARIABLE_END, index + VARIABLE_START.length() );
+        if ( -1 == end )
+        {
+          throw new IllegalStateException( "Unterminated variable starting at line " + lineOf( source, index ) );
+        }
+        final String expression = source.substring( index + VARIABLE_START.length(), end );
+        final int separator = expression.indexOf( DEFAULT_SEPARATOR );
+        final String name = ( -1 == separator ? expression : expression.substring( 0, separator ) ).trim();
+        if ( name.isEmpty() )
+        {
+          throw new IllegalStateException( "Variable with no name at line " + lineOf( source, index ) );
+        }
+        addLiteral( kinds, values, defaults, literal );
+        kinds.add( VARIABLE );
+        values.add( name );
+        defaults.add( -1 == separator ? null : expression.substring( separator + DEFAULT_SEPARATOR.length() ) );
+        index = end + VARIABLE_END.length();
+      }
+      else if ( isUUIDAt( source, index ) )
+      {
+        addLiteral( kinds, values, defaults, literal );
+        kinds.add( UUID );
+        values.add( source.substring( index, index + UUID_LENGTH ) );
+        defaults.add( null );
+        index += UUID_LENGTH;
+      }
+      else
+      {
+        literal.append( source.charAt( index ) );
+        index++;
+      }
+    }
+    addLiteral( kinds, values, defaults, literal );
+    return new Template( kinds, values, defaults, clientIdTemplate );
+  }
+
+  /**
+   * Return the names of the variables that have no default and are not present in the supplied settings.
+   */
+  @Nonnull
+  Set<String> getMissingVariables( @Nonnull final Map<String, String> envs )
+  {
+    Set<String> missing = null;
+    for ( int i = 0; i < _kinds.length; i++ )
+    {
+      if ( VARIABLE == _kinds[ i ] && null == _defaults[ i ] && !envs.containsKey( _values[ i ] ) )
+      {
+        if ( null == missing )
+        {
+          missing = new TreeSet<>();
+        }
+        missing.add( _values[ i ] );
+      }
+    }
+    return null == missing ? Collections.emptySet() : missing;
+  }
+
+  /**
+   * Render the clientId of the template without replacing UUIDs or null if the template has no clientId.
+   * This is used to derive the replacement UUIDs before the template itself is rendered.
+   */
+  @Nullable
+  String renderClientId( @Nonnull final Map<String, String> envs )
+  {
+    return null == _clientIdTemplate ? null : _clientIdTemplate.render( envs, UnaryOperator.identity() );
+  }
+
+  /**
+   * Return the clientId of the template if it does not depend upon any settings, otherwise null.
+   */
+  @Nullable
+  String getLiteralClientId()
+  {
+    return null == _clientIdTemplate || 0 != _clientIdTemplate._variableCount ?
+           null :
+           _clientIdTemplate.render( Collections.emptyMap(), UnaryOperator.identity() );
+  }
+
+  /**
+   * Render the template in a single pass.
+   *
+   * @param envs            the settings substituted into variables.
+   * @param uuidReplacement the function that returns the replacement for each UUID.
+   * @throws IllegalStateException if any variables are missing from the settings.
+   */
+  @Nonnull
+  String render( @Nonnull final Map<String, String> envs, @Nonnull final UnaryOperator<String> uuidReplacement )
+  {
+    final Set<String> missing = getMissingVariables( envs );
+    if ( !missing.isEmpty() )
+    {
+      throw new IllegalStateException( "Unable to replace variables " + missing );
+    }
+
+    final StringBuilder sb = new StringBuilder( _literalLength + 32 * _variableCount );
+    for ( int i = 0; i < _kinds.length; i++ )
+    {
+      final int kind = _kinds[ i ];
+      if ( LITERAL == kind )
+      {
+        sb.append( _values[ i ] );
+      }
+      else if ( UUID == kind )
+      {
+        sb.append( uuidReplacement.apply( _values[ i ] ) );
+      }
+      else
+      {
+        final String value = envs.get( _values[ i ] );
+        appendValue( sb, null == value ? _defaults[ i ] : value, uuidReplacement );
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Append a substituted value replacing any UUIDs that it contains.
+   */
+  private static void appendValue( @Nonnull final StringBuilder sb,
+                                   @Nonnull final String value,
+                                   @Nonnull final UnaryOperator<String> uuidReplacement )
+  {
+    final int length = value.length();
+    if ( length < UUID_LENGTH )
+    {
+      sb.append( value );
+      return;
+    }
+    int start = 0;
+    int index = 0;
+    while ( index <= length - UUID_LENGTH )
+    {
+      if ( isUUIDAt( value, index ) )
+      {
+        sb.append( value, start, index );
+        sb.append( uuidReplacement.apply( value.substring( index, index + UUID_LENGTH ) ) );
+        index += UUID_LENGTH;
+        start = index;
+      }
+      else
+      {
+        index++;
+      }
+    }
+    sb.append( value, start, length );
+  }
+
+  private static void addLiteral( @Nonnull final List<Integer> kinds,
+                                  @Nonnull final List<String> values,
+                                  @Nonnull final List<String> defaults,
+                                  @Nonnull final StringBuilder literal )
+  {
+    if ( literal.length() > 0 )
+    {
+      kinds.add( LITERAL );
+      values.add( literal.toString() );
+      defaults.add( null );
+      literal.setLength( 0 );
+    }
+  }
+
+  /**
+   * Return true if a UUID in the 8-4-4-4-12 hex form starts at the specified index.
+   */
+  private static boolean isUUIDAt( @Nonnull final String text, final int index )
+  {
+    if ( index + UUID_LENGTH > text.length() )
+    {
+      return false;
+    }
+    for ( int i = 0; i < UUID_LENGTH; i++ )
+    {
+      final char ch = text.charAt( index + i );
+      if ( 8 == i || 13 == i || 18 == i || 23 == i )
+      {
+        if ( '-' != ch )
+        {
+          return false;
+        }
+      }
+      else if ( !isHexDigit( ch ) )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isHexDigit( final char ch )
+  {
+    return ( ch >= '0' && ch <= '9' ) || ( ch >= 'a' && ch <= 'f' ) || ( ch >= 'A' && ch <= 'F' );
+  }
+
+  private static int lineOf( @Nonnull final String source, final int index )
+  {
+    int line = 1;
+    for ( int i = 0; i < index; i++ )
+    {
+      if ( '\n' == source.charAt( i ) )
+      {
+        line++;
+      }
+    }
+    return line;
+  }
+}
@@ -0,0 +1,75 @@
+package org.realityforge.keycloak.converger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+
+/**
+ * A cache of compiled templates keyed by path.
+ * A cached template is reused until the modification time or size of the underlying file changes.
+ */
+final class TemplateCache
+{
+  private static final class Entry
+  {
+    private final long _lastModified;
+    private final long _size;
+    @Nonnull
+    private final Template _template;
+
+    Entry( final long lastModified, final long size, @Nonnull final Template template )
+    {
+      _lastModified = lastModified;
+      _size = size;
+      _template = template;
+    }
+  }
+
+  @Nonnull
+  private final Map<Path, Entry> _entries = new ConcurrentHashMap<>();
+
+  /**
+   * Return the compiled template for the specified file, loading and compiling the file if required.
+   */
+  @Nonnull
+  Template get( @Nonnull final Path file )
+    throws IOException
+  {
+    final BasicFileAttributes attributes = Files.readAttributes( file, BasicFileAttributes.class );
+    final long lastModified = attributes.lastModifiedTime().toMillis();
+    final long size = attributes.size();
+    final Entry entry = _entries.get( file );
+    if ( null != entry && entry._lastModified == lastModified && entry._size == size )
+    {
+      return entry._template;
+    }
+    else
+    {
+      final String source = new String( Files.readAllBytes( file ), StandardCharsets.UTF_8 );
+      final Template template = Template.compile( source );
+      _entries.put( file, new Entry( lastModified, size, template ) );
+      return template;
+    }
+  }
+
+  /**
+   * Discard the cached template for the specified file.
+   */
+  void invalidate( @Nonnull final Path file )
+  {
+    _entries.remove( file );
+  }
+
+  /**
+   * Discard every cached template.
+   */
+  void clear()
+  {
+    _entries.clear();
+  }
+}